@@ -0,0 +1,23 @@
+package io.github.aji3.persongenerator;
+
+import java.io.File;
+
+import org.xlbean.XlBean;
+import org.xlbean.reader.XlBeanReader;
+import org.xlbean.util.XlBeanFactory;
+
+/**
+ * Loads the workbook used by the benchmarks. The bundled
+ * person_generator.xlsx is used unless another file is given by the
+ * "workbook" system property.
+ */
+final class BenchmarkWorkbook {
+
+    private BenchmarkWorkbook() {
+    }
+
+    static XlBean load() {
+        XlBeanFactory.setInstance(new FlexibleXlBeanFactory());
+        return new XlBeanReader().read(new File(System.getProperty("workbook", "person_generator.xlsx")));
+    }
+}
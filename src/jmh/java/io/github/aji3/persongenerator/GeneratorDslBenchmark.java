@@ -0,0 +1,92 @@
+package io.github.aji3.persongenerator;
+
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.xlbean.XlBean;
+
+import groovy.lang.GroovyShell;
+
+/**
+ * Measures each {@link GeneratorDsl} helper on its own, called directly from
+ * Java against the bundled workbook.
+ */
+@State(Scope.Thread)
+public class GeneratorDslBenchmark {
+
+    private GeneratorDsl dsl;
+    private String typelistType;
+    private String typelistKey;
+
+    @Setup
+    public void setup() {
+        XlBean xlbean = BenchmarkWorkbook.load();
+        GenerationPlan plan = GenerationPlan.compile(xlbean);
+        GenerationBinding binding = new GenerationBinding(plan, 0, new GenerationMetrics());
+        binding.beginRound(new SplittableRandom(0));
+
+        CompilerConfiguration config = new CompilerConfiguration();
+        config.setScriptBaseClass(GeneratorDsl.class.getName());
+        dsl = (GeneratorDsl) new GroovyShell(binding, config).parse("null");
+
+        XlBean typelist = xlbean.list("typelists").get(0);
+        typelistType = typelist.value("type");
+        typelistKey = typelist.value("key");
+    }
+
+    @Benchmark
+    public String generateEmailFrom() {
+        return dsl.generateEmailFrom("山田", "太郎");
+    }
+
+    @Benchmark
+    public Map<String, Object> generateAddress() {
+        return dsl.generateAddress();
+    }
+
+    @Benchmark
+    public String generatePhone() {
+        return dsl.generatePhone("MOBILE");
+    }
+
+    @Benchmark
+    public String generateUUID() {
+        return dsl.generateUUID();
+    }
+
+    @Benchmark
+    public String randomDigit() {
+        return dsl.randomDigit(10);
+    }
+
+    @Benchmark
+    public List<Map<String, Object>> typelist() {
+        return dsl.typelist(typelistType);
+    }
+
+    @Benchmark
+    public String typelistValue() {
+        return dsl.typelistValue(typelistType, typelistKey);
+    }
+
+    @Benchmark
+    public Map<String, Object> typelistAsMap() {
+        return dsl.typelistAsMap(typelistType);
+    }
+
+    @Benchmark
+    public Object randomFromTypelist() {
+        return dsl.randomFromTypelist(typelistType);
+    }
+
+    @Benchmark
+    public Object randomFromTypelistNot() {
+        return dsl.randomFromTypelistNot(typelistType, typelistKey);
+    }
+}
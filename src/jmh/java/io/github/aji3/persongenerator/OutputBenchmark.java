@@ -0,0 +1,65 @@
+package io.github.aji3.persongenerator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.xlbean.XlBean;
+
+/**
+ * Measures output throughput in records per second. Each invocation writes
+ * {@link #RECORDS} pre-generated records to a temporary file.
+ */
+@State(Scope.Thread)
+public class OutputBenchmark {
+
+    private static final int RECORDS = 1000;
+
+    private List<XlBean> records;
+    private List<String> fieldOrder;
+    private File file;
+
+    @Setup
+    public void setup() throws IOException {
+        XlBean xlbean = BenchmarkWorkbook.load();
+        GenerationPlan plan = GenerationPlan.compile(xlbean);
+        fieldOrder = plan.getTargetFields();
+        try (ParallelPersonGenerator generator = new ParallelPersonGenerator(plan, 1, 0, new RandomSource(0), new GenerationMetrics())) {
+            records = generator.generate(xlbean.value("targetType"), RECORDS);
+            records = records.subList(0, Math.min(RECORDS, records.size()));
+        }
+        file = File.createTempFile("output-benchmark", null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void json() throws IOException {
+        write(new JsonRecordSink(file.getPath()));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void excel() throws IOException {
+        write(new ExcelRecordSink(file.getPath(), fieldOrder));
+    }
+
+    private void write(RecordSink sink) throws IOException {
+        try (RecordSink closeable = sink) {
+            for (XlBean record : records) {
+                sink.write(record);
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package io.github.aji3.persongenerator;
+
+import java.util.List;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.xlbean.XlBean;
+
+/**
+ * Measures one generation round of the workbook's targetType.
+ */
+@State(Scope.Thread)
+public class PersonGeneratorBenchmark {
+
+    private PersonGenerator generator;
+    private String targetType;
+    private long round;
+
+    @Setup
+    public void setup() {
+        XlBean xlbean = BenchmarkWorkbook.load();
+        generator = new PersonGenerator(GenerationPlan.compile(xlbean), 0, new RandomSource(0), new GenerationMetrics());
+        targetType = xlbean.value("targetType");
+    }
+
+    @Benchmark
+    public List<XlBean> generate() {
+        return generator.generate(targetType, round++);
+    }
+}
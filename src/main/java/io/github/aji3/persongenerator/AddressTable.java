@@ -0,0 +1,111 @@
+package io.github.aji3.persongenerator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only copy of the "addresses" and "mansions" sheets used by
+ * {@link GeneratorDsl#generateAddress()}.
+ *
+ * <p>
+ * The table is built once per workbook and shared by all generators. Rows are
+ * copied when the table is built, so nothing a script does to a generated
+ * address can change the table.
+ */
+public class AddressTable {
+
+    private final List<Map<String, Object>> addresses;
+    private final List<Mansion> mansions;
+
+    /**
+     * @param addresses
+     *            rows of the "addresses" sheet. May be null.
+     * @param mansions
+     *            rows of the "mansions" sheet, with "name" and "nameKanji"
+     *            format strings taking the town. May be null.
+     */
+    public AddressTable(List<? extends Map<String, Object>> addresses, List<? extends Map<String, Object>> mansions) {
+        List<Map<String, Object>> addressList = new ArrayList<>();
+        if (addresses != null) {
+            for (Map<String, Object> address : addresses) {
+                addressList.add(Collections.unmodifiableMap(new HashMap<>(address)));
+            }
+        }
+        this.addresses = Collections.unmodifiableList(addressList);
+
+        List<Mansion> mansionList = new ArrayList<>();
+        if (mansions != null) {
+            for (Map<String, Object> mansion : mansions) {
+                mansionList.add(new Mansion(mansion.get("name"), mansion.get("nameKanji")));
+            }
+        }
+        this.mansions = Collections.unmodifiableList(mansionList);
+    }
+
+    public int getAddressCount() {
+        return addresses.size();
+    }
+
+    /**
+     * Returns the address at {@code index}. The returned map is unmodifiable.
+     */
+    public Map<String, Object> getAddress(int index) {
+        return addresses.get(index);
+    }
+
+    public int getMansionCount() {
+        return mansions.size();
+    }
+
+    public Mansion getMansion(int index) {
+        return mansions.get(index);
+    }
+
+    /**
+     * Mansion name templates, e.g. "%s Heights", split around the place holder
+     * once so that names are built by concatenation.
+     */
+    public static class Mansion {
+        private final Template name;
+        private final Template nameKanji;
+
+        Mansion(Object name, Object nameKanji) {
+            this.name = new Template(name);
+            this.nameKanji = new Template(nameKanji);
+        }
+
+        public void appendName(StringBuilder sb, Object town) {
+            name.append(sb, town);
+        }
+
+        public void appendNameKanji(StringBuilder sb, Object town) {
+            nameKanji.append(sb, town);
+        }
+    }
+
+    private static class Template {
+        private final String format;
+        private final String[] parts;
+
+        Template(Object format) {
+            this.format = String.valueOf(format);
+            // Templates with other conversions than "%s" are left to String.format.
+            String withoutPlaceholders = this.format.replace("%s", "");
+            this.parts = withoutPlaceholders.indexOf('%') < 0 ? this.format.split("%s", -1) : null;
+        }
+
+        void append(StringBuilder sb, Object town) {
+            if (parts == null) {
+                sb.append(String.format(format, town));
+                return;
+            }
+            sb.append(parts[0]);
+            for (int i = 1; i < parts.length; i++) {
+                sb.append(town).append(parts[i]);
+            }
+        }
+    }
+}
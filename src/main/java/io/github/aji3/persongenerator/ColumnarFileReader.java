@@ -0,0 +1,223 @@
+package io.github.aji3.persongenerator;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Reads files written by {@link ColumnarRecordSink}.
+ *
+ * <p>
+ * Values are read back as {@link Boolean}, {@link Long}, {@link Double} or
+ * {@link String} according to the type of their column, and nulls as null.
+ * Values of chunks written before their column was widened are converted to
+ * the type of the column.
+ */
+public class ColumnarFileReader implements AutoCloseable {
+
+    private static final int MAGIC = 0x50474331; // "PGC1"
+
+    private final RandomAccessFile file;
+    private final List<String> columnNames = new ArrayList<>();
+    private final List<Byte> columnTypes = new ArrayList<>();
+    private final List<RowGroup> rowGroups = new ArrayList<>();
+
+    public ColumnarFileReader(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+        try {
+            readFooter();
+        } catch (IOException | RuntimeException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    private void readFooter() throws IOException {
+        long length = file.length();
+        file.seek(0);
+        if (length < 16 || file.readInt() != MAGIC) {
+            throw new IOException("Not a columnar file.");
+        }
+        file.seek(length - 12);
+        long footerOffset = file.readLong();
+        if (file.readInt() != MAGIC || footerOffset < 4 || footerOffset > length - 12) {
+            throw new IOException("Columnar file has no footer.");
+        }
+        DataInputStream footer = new DataInputStream(new ByteArrayInputStream(read(footerOffset, length - 12)));
+        int columnCount = footer.readInt();
+        for (int i = 0; i < columnCount; i++) {
+            columnNames.add(readString(footer));
+            columnTypes.add(footer.readByte());
+        }
+        int rowGroupCount = footer.readInt();
+        for (int i = 0; i < rowGroupCount; i++) {
+            RowGroup rowGroup = new RowGroup(footer.readInt(), columnCount);
+            for (int column = 0; column < columnCount; column++) {
+                rowGroup.types[column] = footer.readByte();
+                rowGroup.encodings[column] = footer.readByte();
+                rowGroup.nullCounts[column] = footer.readInt();
+                rowGroup.offsets[column] = footer.readLong();
+                rowGroup.lengths[column] = footer.readLong();
+            }
+            rowGroups.add(rowGroup);
+        }
+    }
+
+    public List<String> getColumnNames() {
+        return Collections.unmodifiableList(columnNames);
+    }
+
+    /**
+     * Returns the type of the column at {@code column}, one of the
+     * {@code TYPE_} constants of {@link ColumnarRecordSink}.
+     */
+    public byte getColumnType(int column) {
+        return columnTypes.get(column);
+    }
+
+    public long getRowCount() {
+        long ret = 0;
+        for (RowGroup rowGroup : rowGroups) {
+            ret += rowGroup.rowCount;
+        }
+        return ret;
+    }
+
+    /**
+     * Passes each row, as values in column order, to {@code consumer}.
+     */
+    public void forEachRow(Consumer<Object[]> consumer) throws IOException {
+        for (RowGroup rowGroup : rowGroups) {
+            Object[][] values = new Object[columnNames.size()][];
+            for (int column = 0; column < values.length; column++) {
+                values[column] = readChunk(rowGroup, column);
+            }
+            for (int row = 0; row < rowGroup.rowCount; row++) {
+                Object[] ret = new Object[values.length];
+                for (int column = 0; column < values.length; column++) {
+                    ret[column] = values[column][row];
+                }
+                consumer.accept(ret);
+            }
+        }
+    }
+
+    private Object[] readChunk(RowGroup rowGroup, int column) throws IOException {
+        int count = rowGroup.rowCount;
+        int nonNullCount = count - rowGroup.nullCounts[column];
+        long offset = rowGroup.offsets[column];
+        DataInputStream in = new DataInputStream(
+            new ByteArrayInputStream(read(offset, offset + rowGroup.lengths[column])));
+        byte[] presence = null;
+        if (nonNullCount < count) {
+            presence = new byte[(count + 7) / 8];
+            in.readFully(presence);
+        }
+
+        Object[] nonNull = new Object[nonNullCount];
+        switch (rowGroup.types[column]) {
+        case ColumnarRecordSink.TYPE_BOOLEAN:
+            byte[] bitmap = new byte[(nonNullCount + 7) / 8];
+            in.readFully(bitmap);
+            for (int i = 0; i < nonNullCount; i++) {
+                nonNull[i] = (bitmap[i >> 3] & (1 << (i & 7))) != 0;
+            }
+            break;
+        case ColumnarRecordSink.TYPE_INT64:
+            for (int i = 0; i < nonNullCount; i++) {
+                nonNull[i] = in.readLong();
+            }
+            break;
+        case ColumnarRecordSink.TYPE_DOUBLE:
+            for (int i = 0; i < nonNullCount; i++) {
+                nonNull[i] = in.readDouble();
+            }
+            break;
+        case ColumnarRecordSink.TYPE_STRING:
+            readStrings(in, rowGroup.encodings[column], nonNull);
+            break;
+        default:
+            throw new IOException(String.format("Unknown type of column %s", columnNames.get(column)));
+        }
+
+        byte columnType = columnTypes.get(column);
+        Object[] ret = new Object[count];
+        int index = 0;
+        for (int i = 0; i < count; i++) {
+            if (presence == null || (presence[i >> 3] & (1 << (i & 7))) != 0) {
+                ret[i] = convert(nonNull[index++], rowGroup.types[column], columnType);
+            }
+        }
+        return ret;
+    }
+
+    private static Object convert(Object value, byte chunkType, byte columnType) {
+        if (chunkType == columnType) {
+            return value;
+        }
+        if (columnType == ColumnarRecordSink.TYPE_DOUBLE) {
+            return ((Long) value).doubleValue();
+        }
+        return value.toString();
+    }
+
+    private static void readStrings(DataInputStream in, byte encoding, Object[] values) throws IOException {
+        if (encoding == ColumnarRecordSink.ENCODING_PLAIN) {
+            for (int i = 0; i < values.length; i++) {
+                values[i] = readString(in);
+            }
+            return;
+        }
+        String[] dictionary = new String[in.readInt()];
+        for (int i = 0; i < dictionary.length; i++) {
+            dictionary[i] = readString(in);
+        }
+        boolean oneByte = in.readByte() == 1;
+        for (int i = 0; i < values.length; i++) {
+            values[i] = dictionary[oneByte ? in.readUnsignedByte() : in.readUnsignedShort()];
+        }
+    }
+
+    private byte[] read(long from, long to) throws IOException {
+        byte[] ret = new byte[(int) (to - from)];
+        file.seek(from);
+        file.readFully(ret);
+        return ret;
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private static class RowGroup {
+        private final int rowCount;
+        private final byte[] types;
+        private final byte[] encodings;
+        private final int[] nullCounts;
+        private final long[] offsets;
+        private final long[] lengths;
+
+        RowGroup(int rowCount, int columnCount) {
+            this.rowCount = rowCount;
+            this.types = new byte[columnCount];
+            this.encodings = new byte[columnCount];
+            this.nullCounts = new int[columnCount];
+            this.offsets = new long[columnCount];
+            this.lengths = new long[columnCount];
+        }
+    }
+}
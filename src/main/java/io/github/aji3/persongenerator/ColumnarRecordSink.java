@@ -0,0 +1,402 @@
+package io.github.aji3.persongenerator;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xlbean.XlBean;
+
+/**
+ * Writes records to a columnar binary file, for loading into analytical
+ * stores.
+ *
+ * <p>
+ * Columns are taken from the {@link RecordSchema} of the run, as in
+ * {@link StreamingExcelRecordSink}. Records are collected into row groups of
+ * {@code rowGroupSize} records, and each row group is written column by
+ * column as soon as it is full. The type of a column is chosen from the
+ * values of the schema sample: BOOLEAN, INT64 (integral numbers), DOUBLE
+ * (other numbers) or STRING (anything else, as {@code toString()}, and columns
+ * without values in the sample). A later value which does not fit the type of
+ * its column widens the column (INT64 to DOUBLE, anything to STRING) from its
+ * row group on. The footer holds the type of each column chunk and the widest
+ * type of each column, to which {@link ColumnarFileReader} converts the values
+ * of earlier chunks. String chunks with few distinct values, such as gender or
+ * town, are dictionary encoded.
+ *
+ * <p>
+ * File layout (big-endian, strings are an int byte length followed by UTF-8
+ * bytes):
+ *
+ * <pre>
+ * "PGC1"
+ * column chunks of row group 1, in column order
+ * ...
+ * footer:
+ *   int columnCount, per column: string name, byte type
+ *   int rowGroupCount, per row group:
+ *     int rowCount, per column:
+ *       byte type, byte encoding, int nullCount, long offset, long length
+ * long footerOffset
+ * "PGC1"
+ * </pre>
+ *
+ * A column chunk starts with a bitmap of ceil(rowCount / 8) bytes, bit i set
+ * for each non-null row i, if nullCount is not 0. Only non-null values
+ * follow: longs, doubles, a bitmap for booleans, strings for PLAIN strings,
+ * and for DICTIONARY strings an int dictionary size, the dictionary strings,
+ * a byte index width (1 or 2) and one index per value.
+ */
+public class ColumnarRecordSink implements RecordSink {
+
+    private static Logger log = LoggerFactory.getLogger(ColumnarRecordSink.class);
+
+    private static final int MAGIC = 0x50474331; // "PGC1"
+
+    public static final byte TYPE_BOOLEAN = 0;
+    public static final byte TYPE_INT64 = 1;
+    public static final byte TYPE_DOUBLE = 2;
+    public static final byte TYPE_STRING = 3;
+
+    public static final byte ENCODING_PLAIN = 0;
+    public static final byte ENCODING_DICTIONARY = 1;
+
+    /**
+     * Largest dictionary, so that indexes fit in two bytes.
+     */
+    private static final int MAX_DICTIONARY_SIZE = 1 << 16;
+
+    private final String fileName;
+    private final RecordSchemaProvider schemaProvider;
+    private final int rowGroupSize;
+    private final DataOutputStream out;
+    private final ByteArrayOutputStream chunkBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream chunk = new DataOutputStream(chunkBuffer);
+    private final ByteArrayOutputStream footerBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream footer = new DataOutputStream(footerBuffer);
+
+    private List<XlBean> sample = new ArrayList<>();
+    private List<String> columnNames;
+    private List<FieldPath> columns;
+    private byte[] types;
+    private Object[][] values;
+    private int rowCount;
+    private int rowGroupCount;
+    private long position;
+
+    /**
+     * @param fileName
+     *            file to write to
+     * @param schemaProvider
+     *            provides the columns
+     * @param rowGroupSize
+     *            number of records per row group
+     * @param metrics
+     *            metrics to report written bytes to
+     */
+    public ColumnarRecordSink(
+            String fileName,
+            RecordSchemaProvider schemaProvider,
+            int rowGroupSize,
+            GenerationMetrics metrics)
+            throws IOException {
+        this.fileName = fileName;
+        this.schemaProvider = schemaProvider;
+        this.rowGroupSize = Math.max(1, rowGroupSize);
+        this.out = new DataOutputStream(
+            new BufferedOutputStream(metrics.countBytes(fileName, new FileOutputStream(fileName)), 64 * 1024));
+        out.writeInt(MAGIC);
+        position = 4;
+    }
+
+    @Override
+    public void write(XlBean record) throws IOException {
+        if (columns == null) {
+            sample.add(record);
+            if (sample.size() >= schemaProvider.getSampleSize()) {
+                flushSample();
+            }
+            return;
+        }
+        addRow(record);
+    }
+
+    private void flushSample() throws IOException {
+        RecordSchema schema = schemaProvider.get(sample);
+        columnNames = schema.getColumnNames();
+        columns = schema.getColumns();
+        types = new byte[columns.size()];
+        Object[] sampleValues = new Object[sample.size()];
+        for (int i = 0; i < columns.size(); i++) {
+            for (int j = 0; j < sample.size(); j++) {
+                sampleValues[j] = columns.get(i).get(sample.get(j));
+            }
+            types[i] = typeOf(sampleValues);
+        }
+        values = new Object[columns.size()][rowGroupSize];
+        for (XlBean record : sample) {
+            addRow(record);
+        }
+        sample = null;
+    }
+
+    private void addRow(XlBean record) throws IOException {
+        for (int i = 0; i < columns.size(); i++) {
+            Object value = columns.get(i).get(record);
+            if (value != null && !fits(types[i], value)) {
+                byte widened = widest(types[i], typeOf(new Object[] { value }));
+                log.info(
+                    "Column {} is widened from {} to {} for value {}.",
+                    columnNames.get(i),
+                    typeName(types[i]),
+                    typeName(widened),
+                    value);
+                types[i] = widened;
+            }
+            values[i][rowCount] = value;
+        }
+        if (++rowCount == rowGroupSize) {
+            writeRowGroup();
+        }
+    }
+
+    private void writeRowGroup() throws IOException {
+        footer.writeInt(rowCount);
+        for (int column = 0; column < values.length; column++) {
+            Object[] columnValues = values[column];
+            chunkBuffer.reset();
+            int nullCount = 0;
+            for (int i = 0; i < rowCount; i++) {
+                if (columnValues[i] == null) {
+                    nullCount++;
+                }
+            }
+            footer.writeByte(types[column]);
+            footer.writeByte(writeChunk(types[column], columnValues, rowCount, nullCount));
+            footer.writeInt(nullCount);
+            footer.writeLong(position);
+            footer.writeLong(chunkBuffer.size());
+            chunkBuffer.writeTo(out);
+            position += chunkBuffer.size();
+            for (int i = 0; i < rowCount; i++) {
+                columnValues[i] = null;
+            }
+        }
+        rowGroupCount++;
+        rowCount = 0;
+    }
+
+    /**
+     * Returns the type of a column with {@code values}.
+     */
+    private static byte typeOf(Object[] values) {
+        boolean allBoolean = true;
+        boolean allIntegral = true;
+        boolean allNumber = true;
+        boolean anyValue = false;
+        for (Object value : values) {
+            if (value == null) {
+                continue;
+            }
+            anyValue = true;
+            allBoolean &= fits(TYPE_BOOLEAN, value);
+            allIntegral &= fits(TYPE_INT64, value);
+            allNumber &= fits(TYPE_DOUBLE, value);
+        }
+        if (!anyValue) {
+            return TYPE_STRING;
+        }
+        return allBoolean ? TYPE_BOOLEAN : allIntegral ? TYPE_INT64 : allNumber ? TYPE_DOUBLE : TYPE_STRING;
+    }
+
+    /**
+     * Returns the narrowest type which both {@code type1} and {@code type2}
+     * values can be written as.
+     */
+    static byte widest(byte type1, byte type2) {
+        if (type1 == type2) {
+            return type1;
+        }
+        if ((type1 == TYPE_INT64 || type1 == TYPE_DOUBLE) && (type2 == TYPE_INT64 || type2 == TYPE_DOUBLE)) {
+            return TYPE_DOUBLE;
+        }
+        return TYPE_STRING;
+    }
+
+    static String typeName(byte type) {
+        switch (type) {
+        case TYPE_BOOLEAN:
+            return "BOOLEAN";
+        case TYPE_INT64:
+            return "INT64";
+        case TYPE_DOUBLE:
+            return "DOUBLE";
+        default:
+            return "STRING";
+        }
+    }
+
+    /**
+     * Returns true if non-null {@code value} can be written as {@code type}.
+     */
+    private static boolean fits(byte type, Object value) {
+        switch (type) {
+        case TYPE_BOOLEAN:
+            return value instanceof Boolean;
+        case TYPE_INT64:
+            return value instanceof Integer
+                    || value instanceof Long
+                    || value instanceof Short
+                    || value instanceof Byte
+                    || (value instanceof BigInteger && ((BigInteger) value).bitLength() < 64);
+        case TYPE_DOUBLE:
+            return value instanceof Number;
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * Writes the column chunk of {@code values} as {@code type} to
+     * {@code chunk} and returns its encoding.
+     */
+    private byte writeChunk(byte type, Object[] values, int count, int nullCount) throws IOException {
+        if (nullCount > 0) {
+            byte[] bitmap = new byte[(count + 7) / 8];
+            for (int i = 0; i < count; i++) {
+                if (values[i] != null) {
+                    bitmap[i >> 3] |= 1 << (i & 7);
+                }
+            }
+            chunk.write(bitmap);
+        }
+
+        switch (type) {
+        case TYPE_BOOLEAN:
+            byte[] bitmap = new byte[(count - nullCount + 7) / 8];
+            int index = 0;
+            for (int i = 0; i < count; i++) {
+                if (values[i] != null) {
+                    if ((Boolean) values[i]) {
+                        bitmap[index >> 3] |= 1 << (index & 7);
+                    }
+                    index++;
+                }
+            }
+            chunk.write(bitmap);
+            return ENCODING_PLAIN;
+        case TYPE_INT64:
+            for (int i = 0; i < count; i++) {
+                if (values[i] != null) {
+                    chunk.writeLong(((Number) values[i]).longValue());
+                }
+            }
+            return ENCODING_PLAIN;
+        case TYPE_DOUBLE:
+            for (int i = 0; i < count; i++) {
+                if (values[i] != null) {
+                    chunk.writeDouble(((Number) values[i]).doubleValue());
+                }
+            }
+            return ENCODING_PLAIN;
+        default:
+            return writeStrings(values, count, count - nullCount);
+        }
+    }
+
+    /**
+     * Writes strings dictionary encoded if there are at most half as many
+     * distinct values as values, else plain. Returns the encoding.
+     */
+    private byte writeStrings(Object[] values, int count, int nonNullCount) throws IOException {
+        Map<String, Integer> dictionary = new HashMap<>();
+        List<String> entries = new ArrayList<>();
+        int limit = Math.min(MAX_DICTIONARY_SIZE, nonNullCount / 2);
+        for (int i = 0; i < count && entries.size() <= limit; i++) {
+            if (values[i] != null) {
+                String value = values[i].toString();
+                if (dictionary.putIfAbsent(value, entries.size()) == null) {
+                    entries.add(value);
+                }
+            }
+        }
+        if (entries.isEmpty() || entries.size() > limit) {
+            for (int i = 0; i < count; i++) {
+                if (values[i] != null) {
+                    writeString(chunk, values[i].toString());
+                }
+            }
+            return ENCODING_PLAIN;
+        }
+
+        chunk.writeInt(entries.size());
+        for (String entry : entries) {
+            writeString(chunk, entry);
+        }
+        boolean oneByte = entries.size() <= 256;
+        chunk.writeByte(oneByte ? 1 : 2);
+        for (int i = 0; i < count; i++) {
+            if (values[i] != null) {
+                int index = dictionary.get(values[i].toString());
+                if (oneByte) {
+                    chunk.writeByte(index);
+                } else {
+                    chunk.writeShort(index);
+                }
+            }
+        }
+        return ENCODING_DICTIONARY;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (columns == null) {
+                flushSample();
+            }
+            if (rowCount > 0) {
+                writeRowGroup();
+            }
+            out.writeInt(columnNames.size());
+            for (int i = 0; i < columnNames.size(); i++) {
+                writeString(out, columnNames.get(i));
+                out.writeByte(types[i]);
+            }
+            out.writeInt(rowGroupCount);
+            footerBuffer.writeTo(out);
+            out.writeLong(position);
+            out.writeInt(MAGIC);
+        } finally {
+            out.close();
+        }
+        log.info("Result in columnar format saved to {}", fileName);
+    }
+
+    @Override
+    public void abort() throws IOException {
+        try {
+            out.close();
+        } finally {
+            Files.deleteIfExists(Paths.get(fileName));
+        }
+    }
+}
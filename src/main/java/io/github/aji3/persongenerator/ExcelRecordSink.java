@@ -0,0 +1,68 @@
+package io.github.aji3.persongenerator;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xlbean.XlBean;
+import org.xlbean.writer.XlBeanWriter;
+
+/**
+ * Writes records to the "persons" table of an excel file.
+ *
+ * <p>
+ * {@link XlBeanWriter} writes a whole workbook at once, so records are kept
+ * until this sink is closed. Columns are those of the {@link RecordSchema} of
+ * the run, as for {@link StreamingExcelRecordSink}.
+ */
+public class ExcelRecordSink implements RecordSink {
+
+    private static Logger log = LoggerFactory.getLogger(ExcelRecordSink.class);
+
+    private String fileName;
+    private RecordSchemaProvider schemaProvider;
+    private GenerationMetrics metrics;
+    private List<XlBean> resultList = new ArrayList<>();
+
+    /**
+     * Creates a sink whose columns are derived from all records written.
+     */
+    public ExcelRecordSink(String fileName, List<String> fieldOrder) {
+        this(fileName, new RecordSchemaProvider(fieldOrder, Integer.MAX_VALUE, 2), new GenerationMetrics());
+    }
+
+    public ExcelRecordSink(String fileName, RecordSchemaProvider schemaProvider, GenerationMetrics metrics) {
+        this.fileName = fileName;
+        this.schemaProvider = schemaProvider;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void write(XlBean record) {
+        resultList.add(record);
+    }
+
+    @Override
+    public void close() throws IOException {
+        XlBean output = new XlBean();
+        output.set("persons", resultList);
+        XlBeanWriter writer = new XlBeanWriter(
+            new ExtendedBeanDefinitionLoader(schemaProvider.get(resultList), "persons"));
+        try (OutputStream outFile = metrics.countBytes(fileName, new FileOutputStream(fileName))) {
+            writer.write(output, null, output, outFile);
+        }
+        log.info("Result saved to excel file: {}", fileName);
+    }
+
+    /**
+     * Drops the records. Nothing is written before {@link #close()}.
+     */
+    @Override
+    public void abort() {
+        resultList.clear();
+    }
+}
@@ -1,75 +1,276 @@
 package io.github.aji3.persongenerator;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
+import org.xlbean.XlBean;
 import org.xlbean.definition.BeanDefinitionLoader;
+import org.xlbean.definition.Definition;
 import org.xlbean.definition.DefinitionRepository;
 import org.xlbean.definition.SingleDefinition;
 import org.xlbean.definition.TableDefinition;
+import org.xlbean.util.FieldAccessHelper;
+import org.xlbean.util.XlBeanFactory;
 
 public class ExtendedBeanDefinitionLoader extends BeanDefinitionLoader {
 
-    private List<String> fieldOrder;
+    /**
+     * Position of each field of the field order and of each of its parent
+     * paths (e.g. "family" of "family.married"), by index-free path (see
+     * {@link #withoutIndexes(String)}). A parent takes the position of its
+     * first field.
+     */
+    private Map<String, Integer> fieldPositions = new HashMap<>();
     private String name;
 
+    /**
+     * Position of each column of the table {@code name} when the columns are
+     * fixed by a {@link RecordSchema}, null otherwise.
+     */
+    private Map<String, Integer> columnPositions;
+
     public ExtendedBeanDefinitionLoader(int i, List<String> order, String name) {
         super(i);
-        this.fieldOrder = order;
+        int position = 0;
+        for (String field : order) {
+            if (field == null) {
+                continue;
+            }
+            String path = withoutIndexes(field);
+            if (fieldPositions.containsKey(path)) {
+                continue;
+            }
+            for (int end = parentEnd(path, path.length()); end > 0; end = parentEnd(path, end)) {
+                fieldPositions.putIfAbsent(path.substring(0, end), position);
+            }
+            fieldPositions.put(path, position++);
+        }
         this.name = name;
     }
 
+    /**
+     * Creates a loader whose table {@code name} has exactly the columns of
+     * {@code schema}, in schema order, whatever the beans written.
+     */
+    public ExtendedBeanDefinitionLoader(RecordSchema schema, String name) {
+        this(schema.getNumberOfIterations(), schema.getColumnNames(), name);
+        this.columnPositions = new LinkedHashMap<>();
+        for (String columnName : schema.getColumnNames()) {
+            columnPositions.putIfAbsent(columnName, columnPositions.size());
+        }
+    }
+
+    /**
+     * Loads definitions from {@code definitionSource}, or from the schema
+     * columns if they are fixed.
+     */
     @Override
-    public DefinitionRepository load() {
-        DefinitionRepository repository = super.load();
-
-        TableDefinition tableDefinition = (TableDefinition) repository
-            .getDefinitions()
-            .stream()
-            .filter(def -> "persons".equals(def.getName()))
-            .findFirst()
-            .orElse(null);
-
-        List<SingleDefinition> list = tableDefinition
-            .getAttributes()
-            .values()
-            .stream()
-            .sorted((attr1, attr2) ->
-            {
-                System.out.println(attr2.getName() + "\t" + fieldOrder.indexOf(attr2.getName()));
-                return fieldOrder.indexOf(attr2.getName()) - fieldOrder.indexOf(attr1.getName());
-            })
-            .collect(Collectors.toList());
-
-        return repository;
+    public void initialize(Object definitionSource) {
+        if (columnPositions == null) {
+            super.initialize(definitionSource);
+            return;
+        }
+        XlBean record = XlBeanFactory.getInstance().createBean();
+        for (String columnName : columnPositions.keySet()) {
+            FieldAccessHelper.setValue(columnName, "", record);
+        }
+        XlBean source = new XlBean();
+        source.set(name, new ArrayList<>(Collections.singletonList(record)));
+        super.initialize(source);
     }
 
+    /**
+     * Returns column names of the table {@code name} in the order they are
+     * written out, for the beans in {@code definitionSource}.
+     */
+    public List<String> loadColumnNames(Object definitionSource) {
+        initialize(definitionSource);
+        DefinitionRepository repository = load();
+        for (Definition definition : repository.getDefinitions()) {
+            if (definition instanceof TableDefinition && name.equals(definition.getName())) {
+                return getAttributesList((TableDefinition) definition)
+                    .stream()
+                    .map(SingleDefinition::getName)
+                    .filter(columnName -> !"~".equals(columnName))
+                    .collect(Collectors.toList());
+            }
+        }
+        return new ArrayList<>();
+    }
+
+    /**
+     * Orders columns of the table {@code name} by the field order.
+     *
+     * <p>
+     * A column takes the position of the field it matches ignoring list
+     * indexes, so "family.children[1].id" takes the position of
+     * "family.children[0].id". Other nested columns, such as "address.town"
+     * or the columns produced by
+     * {@code convertInternalTableDefinitionToNestedSingleDefinition}, take
+     * the position of their longest path in the field order ("address").
+     * Columns in a list take the position of the list, so that they are
+     * grouped by element ("phones[0].number", "phones[0].type",
+     * "phones[1].number", ...), and are ordered by their list indexes, their
+     * own position and then by name. Columns matching no field come last,
+     * ordered by name.
+     */
     @Override
     protected List<SingleDefinition> getAttributesList(TableDefinition tableDefinition) {
-        if (name.equals(tableDefinition.getName())) {
-            return tableDefinition
-                .getAttributes()
-                .values()
-                .stream()
-                .sorted((attr1, attr2) ->
-                {
-                    System.out.println(attr2.getName() + "\t" + fieldOrder.indexOf(attr2.getName()));
-                    int order1 = fieldOrder.indexOf(attr1.getName());
-                    int order2 = fieldOrder.indexOf(attr2.getName());
-                    if (order1 == -1 && order2 == -1) {
-                        return attr1.getName().compareTo(attr2.getName());
-                    } else if (order1 == -1) {
-                        return 1;
-                    } else if (order2 == -1) {
-                        return -1;
-                    } else {
-                        return order1 - order2;
-                    }
-                })
-                .collect(Collectors.toList());
-        } else {
+        if (!name.equals(tableDefinition.getName())) {
             return super.getAttributesList(tableDefinition);
         }
+        if (columnPositions != null) {
+            SingleDefinition[] ordered = new SingleDefinition[columnPositions.size()];
+            List<SingleDefinition> others = new ArrayList<>();
+            for (SingleDefinition attribute : tableDefinition.getAttributes().values()) {
+                Integer position = columnPositions.get(attribute.getName());
+                if (position == null) {
+                    others.add(attribute);
+                } else {
+                    ordered[position] = attribute;
+                }
+            }
+            List<SingleDefinition> ret = new ArrayList<>(ordered.length + others.size());
+            for (SingleDefinition attribute : ordered) {
+                if (attribute != null) {
+                    ret.add(attribute);
+                }
+            }
+            ret.addAll(others);
+            return ret;
+        }
+        List<List<ColumnKey>> buckets = new ArrayList<>(Collections.nCopies(fieldPositions.size(), null));
+        List<ColumnKey> unknown = new ArrayList<>();
+        for (SingleDefinition attribute : tableDefinition.getAttributes().values()) {
+            ColumnKey key = toColumnKey(attribute);
+            if (key.position < 0) {
+                unknown.add(key);
+                continue;
+            }
+            List<ColumnKey> bucket = buckets.get(key.position);
+            if (bucket == null) {
+                bucket = new ArrayList<>(1);
+                buckets.set(key.position, bucket);
+            }
+            bucket.add(key);
+        }
+
+        List<SingleDefinition> ret = new ArrayList<>();
+        for (List<ColumnKey> bucket : buckets) {
+            if (bucket == null) {
+                continue;
+            }
+            if (bucket.size() > 1) {
+                bucket.sort(NESTED_ORDER);
+            }
+            bucket.forEach(key -> ret.add(key.attribute));
+        }
+        unknown.sort(Comparator.comparing(key -> key.attribute.getName()));
+        unknown.forEach(key -> ret.add(key.attribute));
+        return ret;
+    }
+
+    private static final Comparator<ColumnKey> NESTED_ORDER = (a, b) -> {
+        for (int i = 0; i < a.indexes.size() && i < b.indexes.size(); i++) {
+            int compared = Integer.compare(a.indexes.get(i), b.indexes.get(i));
+            if (compared != 0) {
+                return compared;
+            }
+        }
+        if (a.indexes.size() != b.indexes.size()) {
+            return Integer.compare(a.indexes.size(), b.indexes.size());
+        }
+        if (a.fieldPosition != b.fieldPosition) {
+            return Integer.compare(a.fieldPosition, b.fieldPosition);
+        }
+        return a.attribute.getName().compareTo(b.attribute.getName());
+    };
+
+    private ColumnKey toColumnKey(SingleDefinition attribute) {
+        String columnName = attribute.getName();
+        String path = withoutIndexes(columnName);
+        Integer position = fieldPositions.get(path);
+        for (int end = parentEnd(path, path.length()); position == null && end > 0; end = parentEnd(path, end)) {
+            position = fieldPositions.get(path.substring(0, end));
+        }
+        if (position == null) {
+            return new ColumnKey(attribute, -1, -1, Collections.emptyList());
+        }
+        List<Integer> indexes = new ArrayList<>(1);
+        for (int open = columnName.indexOf('['); open >= 0; open = columnName.indexOf('[', open + 1)) {
+            int close = columnName.indexOf(']', open);
+            try {
+                indexes.add(Integer.parseInt(columnName.substring(open + 1, close)));
+            } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                indexes.add(Integer.MAX_VALUE);
+            }
+        }
+        int listEnd = path.indexOf('[');
+        Integer listPosition = listEnd > 0 ? fieldPositions.get(path.substring(0, listEnd)) : null;
+        return new ColumnKey(attribute, listPosition != null ? listPosition : position, position, indexes);
+    }
+
+    /**
+     * Returns {@code path} with list indexes removed, e.g. "phones[].number"
+     * for "phones[1].number".
+     */
+    private static String withoutIndexes(String path) {
+        if (path.indexOf('[') < 0) {
+            return path;
+        }
+        StringBuilder ret = new StringBuilder(path.length());
+        boolean inIndex = false;
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '[') {
+                inIndex = true;
+                ret.append(c);
+            } else if (c == ']') {
+                inIndex = false;
+                ret.append(c);
+            } else if (!inIndex) {
+                ret.append(c);
+            }
+        }
+        return ret.toString();
+    }
+
+    /**
+     * Returns the end of the parent path of {@code path.substring(0, end)},
+     * or 0 if it has no parent.
+     */
+    private static int parentEnd(String path, int end) {
+        for (int i = end - 1; i > 0; i--) {
+            char c = path.charAt(i);
+            if (c == '.' || (c == '[' && i < end - 1)) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Sort key of a column: the position of its list or field, its list
+     * indexes and the position of its field.
+     */
+    private static class ColumnKey {
+        private final SingleDefinition attribute;
+        private final int position;
+        private final int fieldPosition;
+        private final List<Integer> indexes;
+
+        ColumnKey(SingleDefinition attribute, int position, int fieldPosition, List<Integer> indexes) {
+            this.attribute = attribute;
+            this.position = position;
+            this.fieldPosition = fieldPosition;
+            this.indexes = indexes;
+        }
     }
 
 }
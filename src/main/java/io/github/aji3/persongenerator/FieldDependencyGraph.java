@@ -0,0 +1,203 @@
+package io.github.aji3.persongenerator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+import io.github.aji3.persongenerator.GenerationPlan.GeneratorStep;
+
+/**
+ * Dependencies between the generator steps of one instance.
+ *
+ * <p>
+ * A step depends on the steps setting the fields it refers to through
+ * {@code _this} (see {@link LogicReferences}), matched by the accessed path:
+ * reading "family.married" depends on "family.married", "family" and
+ * "family.married.*", not on "family.hasChild". Within its own root a step
+ * only depends on steps above it. A reference to the whole instance depends
+ * on every step above it in the sheet. Steps setting fields
+ * under the same root (e.g. "address" and "address.town") keep their sheet
+ * order, and steps without a target field are run between the steps above
+ * and below them, since their effect is not known.
+ *
+ * <p>
+ * Steps are ordered so that each one runs after its dependencies, otherwise
+ * keeping sheet order, and grouped into levels of steps that do not depend on
+ * each other.
+ */
+public class FieldDependencyGraph {
+
+    private final List<GeneratorStep> orderedSteps;
+    private final List<List<GeneratorStep>> levels;
+    private final Map<GeneratorStep, Set<GeneratorStep>> dependencies;
+
+    private FieldDependencyGraph(
+            List<GeneratorStep> orderedSteps,
+            List<List<GeneratorStep>> levels,
+            Map<GeneratorStep, Set<GeneratorStep>> dependencies) {
+        this.orderedSteps = orderedSteps;
+        this.levels = levels;
+        this.dependencies = dependencies;
+    }
+
+    /**
+     * Builds the graph of {@code steps} (in sheet order) of the instance
+     * {@code instanceName}. Circular dependencies are added to {@code errors}
+     * and references to fields no step sets are added to {@code warnings}; the
+     * steps of a cycle keep their sheet order.
+     */
+    public static FieldDependencyGraph build(
+            String instanceId,
+            String instanceName,
+            List<GeneratorStep> steps,
+            List<String> errors,
+            List<String> warnings) {
+        Map<GeneratorStep, Set<GeneratorStep>> dependencies = new IdentityHashMap<>();
+        for (int i = 0; i < steps.size(); i++) {
+            GeneratorStep step = steps.get(i);
+            Set<GeneratorStep> dependsOn = new LinkedHashSet<>();
+            String root = step.getField() == null ? null : LogicReferences.rootOf(step.getField());
+            for (int j = 0; j < i; j++) {
+                GeneratorStep above = steps.get(j);
+                if (root == null || above.getField() == null || root.equals(LogicReferences.rootOf(above.getField()))) {
+                    dependsOn.add(above);
+                }
+            }
+            for (LogicReferences.Reference reference : step.getReferences().getReferences()) {
+                if (reference.getInstance() != null && !reference.getInstance().equals(instanceName)) {
+                    continue;
+                }
+                if (reference.getField() == null) {
+                    dependsOn.addAll(steps.subList(0, i));
+                    continue;
+                }
+                // steps under the own root keep sheet order, so only steps above count
+                boolean ownRoot = reference.getField().equals(root);
+                boolean found = false;
+                for (int j = 0; j < steps.size(); j++) {
+                    GeneratorStep other = steps.get(j);
+                    if (other.getField() != null && overlaps(reference.getPath(), other.getField())) {
+                        found = true;
+                        if (other != step && (j < i || !ownRoot)) {
+                            dependsOn.add(other);
+                        }
+                    }
+                }
+                if (!found && !reference.getField().startsWith("_")) {
+                    warnings.add(
+                        String.format(
+                            "%s refers to %s but no generator of %s sets %s",
+                            step.getId(),
+                            reference,
+                            instanceId,
+                            reference.getPath()));
+                }
+            }
+            dependencies.put(step, dependsOn);
+        }
+
+        // Kahn's algorithm, taking the step highest in the sheet first
+        Map<GeneratorStep, Integer> sheetIndex = new IdentityHashMap<>();
+        Map<GeneratorStep, Integer> remaining = new IdentityHashMap<>();
+        Map<GeneratorStep, List<GeneratorStep>> dependents = new IdentityHashMap<>();
+        for (int i = 0; i < steps.size(); i++) {
+            GeneratorStep step = steps.get(i);
+            sheetIndex.put(step, i);
+            remaining.put(step, dependencies.get(step).size());
+            for (GeneratorStep dependency : dependencies.get(step)) {
+                dependents.computeIfAbsent(dependency, key -> new ArrayList<>()).add(step);
+            }
+        }
+        PriorityQueue<GeneratorStep> ready = new PriorityQueue<>((a, b) -> sheetIndex.get(a) - sheetIndex.get(b));
+        remaining.forEach((step, count) -> {
+            if (count == 0) {
+                ready.add(step);
+            }
+        });
+        List<GeneratorStep> ordered = new ArrayList<>();
+        Map<GeneratorStep, Integer> levelOf = new IdentityHashMap<>();
+        List<List<GeneratorStep>> levels = new ArrayList<>();
+        while (!ready.isEmpty()) {
+            GeneratorStep step = ready.poll();
+            ordered.add(step);
+            int level = 0;
+            for (GeneratorStep dependency : dependencies.get(step)) {
+                level = Math.max(level, levelOf.get(dependency) + 1);
+            }
+            levelOf.put(step, level);
+            if (levels.size() == level) {
+                levels.add(new ArrayList<>());
+            }
+            levels.get(level).add(step);
+            for (GeneratorStep dependent : dependents.getOrDefault(step, Collections.emptyList())) {
+                if (remaining.merge(dependent, -1, Integer::sum) == 0) {
+                    ready.add(dependent);
+                }
+            }
+        }
+
+        if (ordered.size() < steps.size()) {
+            List<String> cycle = new ArrayList<>();
+            for (GeneratorStep step : steps) {
+                if (!levelOf.containsKey(step)) {
+                    cycle.add(step.getField());
+                }
+            }
+            errors.add(String.format("%s: circular dependency between fields %s", instanceId, cycle));
+            List<List<GeneratorStep>> sequential = new ArrayList<>();
+            for (GeneratorStep step : steps) {
+                sequential.add(Collections.singletonList(step));
+            }
+            return new FieldDependencyGraph(steps, sequential, dependencies);
+        }
+        List<List<GeneratorStep>> unmodifiableLevels = new ArrayList<>();
+        levels.forEach(level -> unmodifiableLevels.add(Collections.unmodifiableList(level)));
+        return new FieldDependencyGraph(
+            Collections.unmodifiableList(ordered),
+            Collections.unmodifiableList(unmodifiableLevels),
+            dependencies);
+    }
+
+    /**
+     * Returns whether reading {@code path} may read the value set to
+     * {@code field}, i.e. one of them is the other or contains it.
+     */
+    private static boolean overlaps(String path, String field) {
+        return path.equals(field) || contains(path, field) || contains(field, path);
+    }
+
+    private static boolean contains(String parent, String child) {
+        return child.length() > parent.length()
+                && child.startsWith(parent)
+                && (child.charAt(parent.length()) == '.' || child.charAt(parent.length()) == '[');
+    }
+
+    /**
+     * Returns the steps in an order in which each step runs after its
+     * dependencies.
+     */
+    public List<GeneratorStep> getOrderedSteps() {
+        return orderedSteps;
+    }
+
+    /**
+     * Returns the steps grouped so that steps of a level only depend on steps
+     * of lower levels.
+     */
+    public List<List<GeneratorStep>> getLevels() {
+        return levels;
+    }
+
+    /**
+     * Returns the steps {@code step} depends on directly.
+     */
+    public Set<GeneratorStep> getDependencies(GeneratorStep step) {
+        Set<GeneratorStep> ret = dependencies.get(step);
+        return ret == null ? Collections.emptySet() : Collections.unmodifiableSet(ret);
+    }
+}
@@ -0,0 +1,98 @@
+package io.github.aji3.persongenerator;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Parsed field path such as "address.town" or "phones[0].number", as used for
+ * target fields and output columns.
+ *
+ * <p>
+ * Instances are immutable and can be shared between threads.
+ */
+public final class FieldPath {
+
+    private final String path;
+    private final String[] names;
+    private final int[] indexes;
+
+    private FieldPath(String path, String[] names, int[] indexes) {
+        this.path = path;
+        this.names = names;
+        this.indexes = indexes;
+    }
+
+    /**
+     * Parses {@code path}. Each dot separated element is a name, optionally
+     * followed by a list index in brackets.
+     *
+     * @throws IllegalArgumentException
+     *             if {@code path} is malformed
+     */
+    public static FieldPath parse(String path) {
+        List<String> names = new ArrayList<>();
+        List<Integer> indexes = new ArrayList<>();
+        for (String element : path.split("\\.", -1)) {
+            int bracket = element.indexOf('[');
+            try {
+                if (bracket < 0) {
+                    names.add(checkName(element, path));
+                    indexes.add(-1);
+                } else if (element.endsWith("]")) {
+                    names.add(checkName(element.substring(0, bracket), path));
+                    indexes.add(Integer.parseInt(element.substring(bracket + 1, element.length() - 1)));
+                } else {
+                    throw new IllegalArgumentException("Illegal field path: " + path);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Illegal field path: " + path, e);
+            }
+        }
+        return new FieldPath(
+            path,
+            names.toArray(new String[names.size()]),
+            indexes.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    private static String checkName(String name, String path) {
+        if (name.isEmpty()) {
+            throw new IllegalArgumentException("Illegal field path: " + path);
+        }
+        return name;
+    }
+
+    /**
+     * Returns the first element of the path without index, e.g. "phones" for
+     * "phones[0].number".
+     */
+    public String getRootName() {
+        return names[0];
+    }
+
+    /**
+     * Returns the value at this path in {@code root}, or null if any element
+     * on the way is missing.
+     */
+    public Object get(Object root) {
+        Object current = root;
+        for (int i = 0; i < names.length; i++) {
+            if (!(current instanceof Map)) {
+                return null;
+            }
+            current = ((Map<?, ?>) current).get(names[i]);
+            if (indexes[i] >= 0) {
+                if (!(current instanceof List) || ((List<?>) current).size() <= indexes[i]) {
+                    return null;
+                }
+                current = ((List<?>) current).get(indexes[i]);
+            }
+        }
+        return current;
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
@@ -0,0 +1,105 @@
+package io.github.aji3.persongenerator;
+
+import java.util.Map;
+import java.util.SplittableRandom;
+
+import groovy.lang.Binding;
+import groovy.lang.MissingPropertyException;
+
+/**
+ * Binding for generator scripts which layers a small per-round scope over the
+ * static workbook data.
+ *
+ * <p>
+ * The workbook layer (every top-level entry of the workbook and
+ * {@code xlbean}) is built once per plan and shared read-only by all
+ * bindings. Variables set on this binding ({@code _this}, {@code _<instanceName>}
+ * of the instances generated so far, and variables assigned by scripts) go
+ * to the round scope, which hides workbook entries of the same name and is
+ * cleared by {@link #beginRound(SplittableRandom)}.
+ *
+ * <p>
+ * The binding also carries the random of the current round, which the DSL
+ * uses for every random value.
+ */
+public class GenerationBinding extends Binding {
+
+    private final GenerationPlan plan;
+    private final Map<String, Object> workbookVariables;
+    private final int scriptCacheSize;
+    private final GenerationMetrics metrics;
+    private SplittableRandom random = new SplittableRandom();
+    private PersonGenerator nestedGenerator;
+
+    /**
+     * @param scriptCacheSize
+     *            script cache size of the nested generator
+     * @param metrics
+     *            metrics the nested generator reports to
+     */
+    public GenerationBinding(GenerationPlan plan, int scriptCacheSize, GenerationMetrics metrics) {
+        this.plan = plan;
+        this.workbookVariables = plan.getWorkbookVariables();
+        this.scriptCacheSize = scriptCacheSize;
+        this.metrics = metrics;
+    }
+
+    public GenerationPlan getPlan() {
+        return plan;
+    }
+
+    /**
+     * Clears the round scope and sets the random of the new round. Called at
+     * the start of each generation round.
+     */
+    public void beginRound(SplittableRandom random) {
+        getVariables().clear();
+        this.random = random;
+    }
+
+    public SplittableRandom getRandom() {
+        return random;
+    }
+
+    /**
+     * Replaces the random without clearing the round scope.
+     */
+    public void setRandom(SplittableRandom random) {
+        this.random = random;
+    }
+
+    /**
+     * Returns the generator for {@code generate} calls of scripts bound to
+     * this binding. It shares the compiled plan and is created once, so
+     * nested generation neither compiles scripts nor starts with an empty
+     * script cache. It has its own binding, since a nested round must not
+     * clear the scope of the round that started it. It reports instance and
+     * script metrics to the metrics of this binding, but its records are not
+     * counted as output.
+     */
+    public PersonGenerator getNestedGenerator() {
+        if (nestedGenerator == null) {
+            nestedGenerator = new PersonGenerator(plan, scriptCacheSize, new RandomSource(0), metrics);
+            nestedGenerator.setCountRecords(false);
+        }
+        return nestedGenerator;
+    }
+
+    @Override
+    public Object getVariable(String name) {
+        Map<?, ?> variables = getVariables();
+        Object result = variables.get(name);
+        if (result == null && !variables.containsKey(name)) {
+            result = workbookVariables.get(name);
+            if (result == null && !workbookVariables.containsKey(name)) {
+                throw new MissingPropertyException(name, this.getClass());
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean hasVariable(String name) {
+        return super.hasVariable(name) || workbookVariables.containsKey(name);
+    }
+}
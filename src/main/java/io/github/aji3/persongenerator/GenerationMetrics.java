@@ -0,0 +1,251 @@
+package io.github.aji3.persongenerator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Thread-safe metrics of a generation run.
+ *
+ * <p>
+ * Collects records per second, latency of each instance (e.g.
+ * "person.main"), execution time and errors of each generator script (e.g.
+ * "person.main.email"), how often conditions skip an instance, script cache
+ * statistics and bytes written to each output file. {@link #snapshot()}
+ * returns all of them as a map which is written out as JSON.
+ */
+public class GenerationMetrics {
+
+    private static final ObjectMapper mapper = new ObjectMapper().enable(SerializationFeature.INDENT_OUTPUT);
+
+    private final long startNanos = System.nanoTime();
+    private final LongAdder rounds = new LongAdder();
+    private final LongAdder records = new LongAdder();
+    private final ConcurrentMap<String, InstanceMetrics> instances = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ScriptMetrics> scripts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, LongAdder> outputBytes = new ConcurrentHashMap<>();
+    private volatile Supplier<Map<String, Long>> scriptCacheStatistics = Collections::emptyMap;
+
+    public void roundGenerated(int numberOfRecords) {
+        rounds.increment();
+        records.add(numberOfRecords);
+    }
+
+    public long getRecordCount() {
+        return records.sum();
+    }
+
+    public void instanceSkipped(String instanceId) {
+        instance(instanceId).skipped.increment();
+    }
+
+    public void instanceGenerated(String instanceId, long nanos) {
+        InstanceMetrics instance = instance(instanceId);
+        instance.generated.increment();
+        instance.latency.record(nanos);
+    }
+
+    public void scriptExecuted(String scriptId, long nanos) {
+        ScriptMetrics script = script(scriptId);
+        script.count.increment();
+        script.nanos.add(nanos);
+    }
+
+    public void scriptFailed(String scriptId) {
+        script(scriptId).errors.increment();
+    }
+
+    public void setScriptCacheStatistics(Supplier<Map<String, Long>> scriptCacheStatistics) {
+        this.scriptCacheStatistics = scriptCacheStatistics;
+    }
+
+    /**
+     * Wraps {@code out} so that bytes written to it are reported as output of
+     * {@code fileName}.
+     */
+    public OutputStream countBytes(String fileName, OutputStream out) {
+        LongAdder counter = outputBytes.computeIfAbsent(fileName, key -> new LongAdder());
+        return new CountingOutputStream(out, counter);
+    }
+
+    private InstanceMetrics instance(String instanceId) {
+        return instances.computeIfAbsent(instanceId, key -> new InstanceMetrics());
+    }
+
+    private ScriptMetrics script(String scriptId) {
+        return scripts.computeIfAbsent(scriptId, key -> new ScriptMetrics());
+    }
+
+    /**
+     * Returns the current values of all metrics.
+     */
+    public Map<String, Object> snapshot() {
+        double elapsedSeconds = (System.nanoTime() - startNanos) / 1e9;
+        Map<String, Object> ret = new LinkedHashMap<>();
+        ret.put("elapsedSeconds", round(elapsedSeconds));
+        ret.put("rounds", rounds.sum());
+        ret.put("records", records.sum());
+        ret.put("recordsPerSecond", round(records.sum() / Math.max(elapsedSeconds, 1e-9)));
+
+        Map<String, Object> instanceMap = new TreeMap<>();
+        instances.forEach((key, value) -> instanceMap.put(key, value.toMap()));
+        ret.put("instances", instanceMap);
+
+        Map<String, Object> scriptMap = new TreeMap<>();
+        scripts.forEach((key, value) -> scriptMap.put(key, value.toMap()));
+        ret.put("generators", scriptMap);
+
+        ret.put("scriptCache", scriptCacheStatistics.get());
+
+        Map<String, Object> outputMap = new TreeMap<>();
+        outputBytes.forEach((key, value) -> outputMap.put(key, value.sum()));
+        ret.put("outputBytes", outputMap);
+        return ret;
+    }
+
+    public String toJson() {
+        try {
+            return mapper.writeValueAsString(snapshot());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public void writeTo(File file) {
+        try {
+            mapper.writeValue(file, snapshot());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+
+    private static class InstanceMetrics {
+        private final LongAdder generated = new LongAdder();
+        private final LongAdder skipped = new LongAdder();
+        private final Histogram latency = new Histogram();
+
+        Map<String, Object> toMap() {
+            Map<String, Object> ret = new LinkedHashMap<>();
+            long generatedCount = generated.sum();
+            long skippedCount = skipped.sum();
+            ret.put("generated", generatedCount);
+            ret.put("skipped", skippedCount);
+            ret.put(
+                "skipRatio",
+                generatedCount + skippedCount == 0 ? 0 : round((double) skippedCount / (generatedCount + skippedCount)));
+            ret.put("latencyMicros", latency.toMap());
+            return ret;
+        }
+    }
+
+    private static class ScriptMetrics {
+        private final LongAdder count = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+
+        Map<String, Object> toMap() {
+            Map<String, Object> ret = new LinkedHashMap<>();
+            long executions = count.sum();
+            ret.put("executions", executions);
+            ret.put("totalMillis", round(nanos.sum() / 1e6));
+            ret.put("meanMicros", executions == 0 ? 0 : round(nanos.sum() / 1e3 / executions));
+            ret.put("errors", errors.sum());
+            return ret;
+        }
+    }
+
+    /**
+     * Histogram with power-of-two buckets of nanoseconds. Percentiles are
+     * reported as the upper bound of the bucket they fall in.
+     */
+    private static class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long nanos) {
+            long value = Math.max(nanos, 1);
+            buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(value));
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> ret = new LinkedHashMap<>();
+            long total = count.sum();
+            ret.put("count", total);
+            ret.put("mean", total == 0 ? 0 : round(sum.sum() / 1e3 / total));
+            ret.put("p50", round(percentile(total, 0.5) / 1e3));
+            ret.put("p90", round(percentile(total, 0.9) / 1e3));
+            ret.put("p99", round(percentile(total, 0.99) / 1e3));
+            ret.put("max", round(max.get() / 1e3));
+            return ret;
+        }
+
+        private long percentile(long total, double ratio) {
+            if (total == 0) {
+                return 0;
+            }
+            long threshold = (long) Math.ceil(total * ratio);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= threshold) {
+                    return Math.min(i == 62 ? Long.MAX_VALUE : (1L << (i + 1)) - 1, max.get());
+                }
+            }
+            return max.get();
+        }
+    }
+
+    private static class CountingOutputStream extends OutputStream {
+        private final OutputStream out;
+        private final LongAdder counter;
+
+        CountingOutputStream(OutputStream out, LongAdder counter) {
+            this.out = out;
+            this.counter = counter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            counter.increment();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            counter.add(len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
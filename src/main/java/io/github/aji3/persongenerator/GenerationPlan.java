@@ -0,0 +1,673 @@
+package io.github.aji3.persongenerator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.codehaus.groovy.control.CompilationFailedException;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.customizers.ASTTransformationCustomizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xlbean.XlBean;
+
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.GroovyCodeSource;
+import groovy.lang.Script;
+import groovy.transform.CompileStatic;
+
+/**
+ * Immutable execution plan compiled from the "instanceTypes" and "generators"
+ * sheets of a workbook.
+ *
+ * <p>
+ * The plan maps each instance type to its instances, in sheet order. Each
+ * instance holds its compiled condition and the ordered list of generator
+ * steps (target field and compiled logic) to run for it. All scripts are
+ * compiled once when the plan is compiled, and the sheets are validated at the
+ * same time so that mistakes are reported before a long run starts.
+ *
+ * <p>
+ * A plan is thread-safe and can be shared by any number of
+ * {@link PersonGenerator}s. Compiled scripts are held as classes; each
+ * generator instantiates them against its own binding.
+ *
+ * <p>
+ * With static compilation enabled, each script is first compiled with
+ * {@link CompileStatic}, so that DSL calls and typed accessors such as
+ * {@link GeneratorDsl#getThisBean()} are plain method calls. Scripts which do
+ * not type check, e.g. because they use {@code _this} or other binding
+ * variables, are compiled dynamically instead and listed by
+ * {@link #getDynamicScripts()}.
+ */
+public class GenerationPlan {
+
+    private static Logger log = LoggerFactory.getLogger(GenerationPlan.class);
+
+    /**
+     * Code base {@code GroovyShell} uses for parsed scripts.
+     */
+    private static final String CODE_BASE = "/groovy/shell";
+
+    private static final Pattern FIELD_PATH = Pattern.compile("[A-Za-z_]\\w*(\\[\\d+\\])?(\\.[A-Za-z_]\\w*(\\[\\d+\\])?)*");
+
+    private final XlBean workbook;
+    private final Map<String, Object> workbookVariables;
+    private final TypelistIndex typelistIndex;
+    private final AddressTable addressTable;
+    private final Map<String, List<InstancePlan>> instancesByType;
+    private final List<String> targetFields;
+    private final int maxBatchSize;
+    private final List<String> dynamicScripts;
+
+    private GenerationPlan(
+            XlBean workbook,
+            Map<String, List<InstancePlan>> instancesByType,
+            List<String> targetFields,
+            List<String> dynamicScripts) {
+        this.workbook = workbook;
+        Map<String, Object> variables = new HashMap<>(workbook);
+        variables.put("xlbean", workbook);
+        this.workbookVariables = Collections.unmodifiableMap(variables);
+        this.typelistIndex = new TypelistIndex(workbook.list("typelists"));
+        this.addressTable = new AddressTable(workbook.list("addresses"), workbook.list("mansions"));
+        this.instancesByType = instancesByType;
+        this.targetFields = targetFields;
+        this.dynamicScripts = dynamicScripts;
+        this.maxBatchSize = instancesByType
+            .values()
+            .stream()
+            .flatMap(List::stream)
+            .flatMap(instance -> instance.getSteps().stream())
+            .mapToInt(GeneratorStep::getBatchSize)
+            .max()
+            .orElse(0);
+    }
+
+    /**
+     * Compiles the plan for {@code workbook}.
+     *
+     * @throws IllegalArgumentException
+     *             if the sheets contain unknown instance names, invalid field
+     *             paths or scripts with syntax errors. The message lists all
+     *             problems found.
+     */
+    public static GenerationPlan compile(XlBean workbook) {
+        return compile(workbook, false);
+    }
+
+    /**
+     * Compiles the plan for {@code workbook}, statically where possible if
+     * {@code compileStatic} is true.
+     *
+     * @throws IllegalArgumentException
+     *             if the sheets contain unknown instance names, invalid field
+     *             paths or scripts with syntax errors. The message lists all
+     *             problems found.
+     */
+    public static GenerationPlan compile(XlBean workbook, boolean compileStatic) {
+        return new Compiler(workbook, compileStatic).compile();
+    }
+
+    public XlBean getWorkbook() {
+        return workbook;
+    }
+
+    /**
+     * Returns the variables every script sees regardless of the record being
+     * generated: each top-level entry of the workbook, and the workbook itself
+     * as {@code xlbean}.
+     */
+    public Map<String, Object> getWorkbookVariables() {
+        return workbookVariables;
+    }
+
+    public TypelistIndex getTypelistIndex() {
+        return typelistIndex;
+    }
+
+    public AddressTable getAddressTable() {
+        return addressTable;
+    }
+
+    /**
+     * Returns instances of {@code type} in sheet order, or an empty list if
+     * the type is not defined.
+     */
+    public List<InstancePlan> getInstances(String type) {
+        List<InstancePlan> instances = instancesByType.get(type);
+        return instances == null ? Collections.emptyList() : instances;
+    }
+
+    public Set<String> getTypes() {
+        return instancesByType.keySet();
+    }
+
+    /**
+     * Returns the names of {@code instanceName} of {@code type} and of all
+     * instances it refers to, directly or through other instances.
+     */
+    public Set<String> getRequiredInstances(String type, String instanceName) {
+        Map<String, InstancePlan> byName = new HashMap<>();
+        getInstances(type).forEach(instance -> byName.put(instance.getName(), instance));
+        Set<String> required = new HashSet<>();
+        Deque<String> pending = new ArrayDeque<>();
+        pending.add(instanceName);
+        while (!pending.isEmpty()) {
+            String name = pending.poll();
+            InstancePlan instance = byName.get(name);
+            if (instance != null && required.add(name)) {
+                pending.addAll(instance.getReferencedInstances());
+            }
+        }
+        return required;
+    }
+
+    /**
+     * Returns target fields of all generators in sheet order.
+     */
+    public List<String> getTargetFields() {
+        return targetFields;
+    }
+
+    /**
+     * Returns the largest batch size of all steps, or 0 if no step is run in
+     * batches.
+     */
+    public int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    /**
+     * Returns the scripts which were compiled dynamically although static
+     * compilation was requested, with the reason, e.g. "logic of person main
+     * for field email: The variable [_this] is undeclared." Empty if static
+     * compilation was not requested.
+     */
+    public List<String> getDynamicScripts() {
+        return dynamicScripts;
+    }
+
+    /**
+     * Instance of an instance type, e.g. "main" or "spouse" of "person".
+     */
+    public static final class InstancePlan {
+        private final String type;
+        private final String name;
+        private final CompiledScript condition;
+        private final FieldDependencyGraph dependencies;
+        private final Set<String> referencedInstances;
+        private final boolean parallel;
+
+        InstancePlan(
+                String type,
+                String name,
+                CompiledScript condition,
+                FieldDependencyGraph dependencies,
+                Set<String> referencedInstances) {
+            this.type = type;
+            this.name = name;
+            this.condition = condition;
+            this.dependencies = dependencies;
+            this.referencedInstances = Collections.unmodifiableSet(referencedInstances);
+            this.parallel = dependencies.getOrderedSteps().stream().anyMatch(GeneratorStep::isParallel);
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns "type.name", which identifies this instance in logs and
+         * metrics.
+         */
+        public String getId() {
+            return type + "." + name;
+        }
+
+        public CompiledScript getCondition() {
+            return condition;
+        }
+
+        /**
+         * Returns the steps in dependency order: each step comes after the
+         * steps setting the fields it refers to, otherwise in sheet order.
+         */
+        public List<GeneratorStep> getSteps() {
+            return dependencies.getOrderedSteps();
+        }
+
+        public FieldDependencyGraph getDependencies() {
+            return dependencies;
+        }
+
+        /**
+         * Returns the names of the other instances the condition or the steps
+         * refer to.
+         */
+        public Set<String> getReferencedInstances() {
+            return referencedInstances;
+        }
+
+        /**
+         * Returns whether any step is to be run in parallel with the steps
+         * independent of it.
+         */
+        public boolean hasParallelSteps() {
+            return parallel;
+        }
+    }
+
+    /**
+     * A generator logic of an instance and the field its result is set to.
+     *
+     * <p>
+     * A step with a batch size (the "batch" column of the generators sheet)
+     * is run once per batch of consecutive rounds instead of once per round.
+     * Its logic sees the number of values to produce as {@code batchSize} and
+     * returns a list (or array) of at least that many values, of which each
+     * round of the batch takes the value at its position, e.g.
+     * {@code randomDigits(8, batchSize)}. Such logic must not depend on the
+     * record being generated.
+     */
+    public static final class GeneratorStep {
+        private final String id;
+        private final String field;
+        private final CompiledScript logic;
+        private final int batchSize;
+        private final LogicReferences references;
+        private final boolean parallel;
+
+        GeneratorStep(
+                String id,
+                String field,
+                CompiledScript logic,
+                int batchSize,
+                LogicReferences references,
+                boolean parallel) {
+            this.id = id;
+            this.field = field;
+            this.logic = logic;
+            this.batchSize = batchSize;
+            this.references = references;
+            this.parallel = parallel;
+        }
+
+        /**
+         * Returns "type.name.field", or "type.name.row&lt;n&gt;" with the row
+         * in the generators table for steps without a target field, which
+         * identifies this step in logs, metrics and random seeds.
+         */
+        public String getId() {
+            return id;
+        }
+
+        /**
+         * Returns the target field path, or null if the result of the logic
+         * is not stored.
+         */
+        public String getField() {
+            return field;
+        }
+
+        public CompiledScript getLogic() {
+            return logic;
+        }
+
+        /**
+         * Returns the number of rounds one execution of the logic produces
+         * values for, or 0 if the logic is run for each round.
+         */
+        public int getBatchSize() {
+            return batchSize;
+        }
+
+        public boolean isBatch() {
+            return batchSize > 0;
+        }
+
+        /**
+         * Returns the fields of generated instances the logic refers to.
+         */
+        public LogicReferences getReferences() {
+            return references;
+        }
+
+        /**
+         * Returns whether the step is expensive enough to run on another
+         * thread, concurrently with the steps independent of it ("parallel"
+         * column of the generators sheet).
+         */
+        public boolean isParallel() {
+            return parallel;
+        }
+    }
+
+    /**
+     * Script source and the class compiled from it.
+     */
+    public static final class CompiledScript {
+        private final String source;
+        private final Class<? extends Script> scriptClass;
+
+        CompiledScript(String source, Class<? extends Script> scriptClass) {
+            this.source = source;
+            this.scriptClass = scriptClass;
+        }
+
+        public String getSource() {
+            return source;
+        }
+
+        public Class<? extends Script> getScriptClass() {
+            return scriptClass;
+        }
+    }
+
+    private static class Compiler {
+        private final XlBean workbook;
+        private final GroovyClassLoader classLoader;
+        private final GroovyClassLoader staticClassLoader;
+        private final Map<String, CompiledScript> compiledScripts = new HashMap<>();
+        private final List<String> errors = new ArrayList<>();
+        private final List<String> dynamicScripts = new ArrayList<>();
+        private final List<String> warnings = new ArrayList<>();
+        private final Map<XlBean, Integer> generatorRows = new IdentityHashMap<>();
+
+        Compiler(XlBean workbook, boolean compileStatic) {
+            this.workbook = workbook;
+            this.classLoader = new GroovyClassLoader(GenerationPlan.class.getClassLoader(), configuration());
+            if (compileStatic) {
+                CompilerConfiguration staticConfig = configuration();
+                staticConfig.addCompilationCustomizers(new ASTTransformationCustomizer(CompileStatic.class));
+                this.staticClassLoader = new GroovyClassLoader(GenerationPlan.class.getClassLoader(), staticConfig);
+            } else {
+                this.staticClassLoader = null;
+            }
+        }
+
+        private static CompilerConfiguration configuration() {
+            CompilerConfiguration config = new CompilerConfiguration();
+            config.setScriptBaseClass("io.github.aji3.persongenerator.GeneratorDsl");
+            return config;
+        }
+
+        GenerationPlan compile() {
+            Map<String, List<XlBean>> instanceTypes = new LinkedHashMap<>();
+            for (XlBean instanceType : listOrEmpty("instanceTypes")) {
+                instanceTypes
+                    .computeIfAbsent(instanceType.value("type"), key -> new ArrayList<>())
+                    .add(instanceType);
+            }
+
+            Map<String, List<XlBean>> generators = new HashMap<>();
+            Set<String> targetFields = new LinkedHashSet<>();
+            int row = 0;
+            for (XlBean generator : listOrEmpty("generators")) {
+                row++;
+                XlBean target = generator.bean("target");
+                String type = target == null ? null : target.value("type");
+                String field = target == null ? null : target.value("field");
+                if (!instanceTypes.containsKey(type)) {
+                    errors.add(String.format("generators row %d: unknown target type %s", row, type));
+                    continue;
+                }
+                if (field != null && !FIELD_PATH.matcher(field).matches()) {
+                    errors.add(String.format("generators row %d: invalid target field %s", row, field));
+                }
+                if (batchSize(generator) < 0) {
+                    errors.add(
+                        String.format(
+                            "generators row %d: batch must be a positive integer but was %s",
+                            row,
+                            generator.value("batch")));
+                }
+                XlBean logic = generator.bean("logic");
+                if (logic != null) {
+                    for (Map.Entry<String, Object> entry : logic.entrySet()) {
+                        if (entry.getValue() != null && instanceTypes
+                            .get(type)
+                            .stream()
+                            .noneMatch(instance -> entry.getKey().equals(instance.value("name")))) {
+                            errors.add(
+                                String.format(
+                                    "generators row %d: unknown instance name %s for type %s",
+                                    row,
+                                    entry.getKey(),
+                                    type));
+                        }
+                    }
+                }
+                if (field != null) {
+                    targetFields.add(field);
+                }
+                generators.computeIfAbsent(type, key -> new ArrayList<>()).add(generator);
+                generatorRows.put(generator, row);
+            }
+
+            Map<String, List<InstancePlan>> instancesByType = new LinkedHashMap<>();
+            instanceTypes.forEach((type, instances) -> {
+                List<InstancePlan> plans = new ArrayList<>();
+                List<String> instanceNames = new ArrayList<>();
+                for (XlBean instance : instances) {
+                    String name = instance.value("name");
+                    instanceNames.add(name);
+                }
+                for (XlBean instance : instances) {
+                    plans.add(
+                        compileInstance(
+                            type,
+                            instance,
+                            generators.getOrDefault(type, Collections.emptyList()),
+                            instanceNames));
+                }
+                checkInstanceReferences(plans);
+                instancesByType.put(type, Collections.unmodifiableList(plans));
+            });
+            warnings.forEach(warning -> log.warn("{}", warning));
+
+            if (!errors.isEmpty()) {
+                throw new IllegalArgumentException(
+                    "Invalid generator definitions:" + System.lineSeparator() + " - "
+                            + String.join(System.lineSeparator() + " - ", errors));
+            }
+            if (staticClassLoader != null) {
+                log.info(
+                    "Compiled {} script(s) statically and {} dynamically.",
+                    compiledScripts.size() - dynamicScripts.size(),
+                    dynamicScripts.size());
+            }
+            return new GenerationPlan(
+                workbook,
+                Collections.unmodifiableMap(instancesByType),
+                Collections.unmodifiableList(new ArrayList<>(targetFields)),
+                Collections.unmodifiableList(dynamicScripts));
+        }
+
+        private InstancePlan compileInstance(
+                String type,
+                XlBean instance,
+                List<XlBean> generators,
+                List<String> instanceNames) {
+            String name = instance.value("name");
+            String conditionLogic = instance.value("condition");
+            CompiledScript condition = null;
+            if (conditionLogic == null) {
+                errors.add(String.format("instanceTypes %s %s: condition is empty", type, name));
+            } else {
+                condition = compileScript(conditionLogic, String.format("condition of %s %s", type, name));
+            }
+
+            List<GeneratorStep> steps = new ArrayList<>();
+            Set<String> stepFields = new HashSet<>();
+            for (XlBean generator : generators) {
+                String field = generator.bean("target").value("field");
+                XlBean logicInstance = generator.bean("logic");
+                String generatorLogic = logicInstance == null ? null : logicInstance.value(name);
+                if (generatorLogic == null) {
+                    continue;
+                }
+                CompiledScript logic = compileScript(
+                    generatorLogic,
+                    String.format("logic of %s %s for field %s", type, name, field));
+                // steps without (or repeating) a target field are named by their row
+                String id = field != null && stepFields.add(field)
+                        ? String.format("%s.%s.%s", type, name, field)
+                        : String.format("%s.%s.row%d", type, name, generatorRows.get(generator));
+                steps.add(
+                    new GeneratorStep(
+                        id,
+                        field,
+                        logic,
+                        Math.max(0, batchSize(generator)),
+                        LogicReferences.parse(generatorLogic, instanceNames),
+                        "true".equalsIgnoreCase(String.valueOf(generator.value("parallel")).trim())));
+            }
+            FieldDependencyGraph dependencies = FieldDependencyGraph
+                .build(String.format("%s.%s", type, name), name, steps, errors, warnings);
+
+            Set<String> referencedInstances = new LinkedHashSet<>();
+            List<LogicReferences.Reference> references = new ArrayList<>(
+                LogicReferences.parse(conditionLogic, instanceNames).getReferences());
+            steps.forEach(step -> references.addAll(step.getReferences().getReferences()));
+            for (LogicReferences.Reference reference : references) {
+                if (reference.getInstance() != null && !reference.getInstance().equals(name)) {
+                    referencedInstances.add(reference.getInstance());
+                }
+            }
+            return new InstancePlan(type, name, condition, dependencies, referencedInstances);
+        }
+
+        /**
+         * Adds warnings for references to instances generated later in the
+         * round and to fields no generator of the referenced instance sets.
+         */
+        private void checkInstanceReferences(List<InstancePlan> instances) {
+            Map<String, Integer> positions = new HashMap<>();
+            Map<String, Set<String>> fields = new HashMap<>();
+            for (int i = 0; i < instances.size(); i++) {
+                InstancePlan instance = instances.get(i);
+                positions.put(instance.getName(), i);
+                Set<String> roots = new HashSet<>();
+                for (GeneratorStep step : instance.getSteps()) {
+                    if (step.getField() != null) {
+                        roots.add(LogicReferences.rootOf(step.getField()));
+                    }
+                }
+                fields.put(instance.getName(), roots);
+            }
+            for (int i = 0; i < instances.size(); i++) {
+                for (GeneratorStep step : instances.get(i).getSteps()) {
+                    for (LogicReferences.Reference reference : step.getReferences().getReferences()) {
+                        String other = reference.getInstance();
+                        if (other == null || other.equals(instances.get(i).getName())) {
+                            continue;
+                        }
+                        if (positions.get(other) > i) {
+                            warnings.add(
+                                String.format(
+                                    "%s refers to %s which is generated later in the round",
+                                    step.getId(),
+                                    reference));
+                        } else if (reference.getField() != null
+                                && !reference.getField().startsWith("_")
+                                && !fields.get(other).contains(reference.getField())) {
+                            warnings.add(
+                                String.format(
+                                    "%s refers to %s but no generator of %s sets %s",
+                                    step.getId(),
+                                    reference,
+                                    other,
+                                    reference.getField()));
+                        }
+                    }
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        private CompiledScript compileScript(String source, String description) {
+            CompiledScript compiled = compiledScripts.get(source);
+            if (compiled != null) {
+                return compiled;
+            }
+            String scriptName = String.format("Script%d.groovy", compiledScripts.size() + 1);
+            if (staticClassLoader != null) {
+                try {
+                    compiled = new CompiledScript(
+                        source,
+                        staticClassLoader.parseClass(new GroovyCodeSource(source, scriptName, CODE_BASE)));
+                    compiledScripts.put(source, compiled);
+                    return compiled;
+                } catch (CompilationFailedException e) {
+                    String reason = String.format("%s: %s", description, firstError(e));
+                    log.warn("Compiling dynamically {}", reason);
+                    dynamicScripts.add(reason);
+                }
+            }
+            try {
+                Class<? extends Script> scriptClass = classLoader.parseClass(
+                    new GroovyCodeSource(source, scriptName, CODE_BASE));
+                compiled = new CompiledScript(source, scriptClass);
+                compiledScripts.put(source, compiled);
+                return compiled;
+            } catch (CompilationFailedException e) {
+                errors.add(String.format("%s: %s", description, e.getMessage()));
+                return null;
+            }
+        }
+
+        /**
+         * Returns the first error of {@code e} without the script name and
+         * source position, which are the same for every cell.
+         */
+        private static String firstError(CompilationFailedException e) {
+            for (String line : e.getMessage().split("\\R")) {
+                int start = line.indexOf(".groovy: ");
+                if (start >= 0) {
+                    String error = line.substring(start + ".groovy: ".length());
+                    // strip the line number, e.g. "1: "
+                    return error.replaceFirst("^\\d+: ", "").replaceFirst("^\\[Static type checking\\] - ", "");
+                }
+            }
+            return e.getMessage();
+        }
+
+        /**
+         * Returns the value of the "batch" column, 0 if it is empty, or -1 if
+         * it is not a positive integer.
+         */
+        private int batchSize(XlBean generator) {
+            String batch = generator.value("batch");
+            if (batch == null || batch.trim().isEmpty()) {
+                return 0;
+            }
+            try {
+                // numeric cells may be read as e.g. "100.0"
+                double value = Double.parseDouble(batch.trim());
+                return value >= 1 && value <= Integer.MAX_VALUE && value == Math.rint(value) ? (int) value : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        private List<XlBean> listOrEmpty(String key) {
+            List<XlBean> list = workbook.list(key);
+            return list == null ? Collections.emptyList() : list;
+        }
+    }
+}
@@ -3,73 +3,167 @@ package io.github.aji3.persongenerator;
 import java.time.LocalDate;
 import java.time.Period;
 import java.time.format.DateTimeFormatter;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.SplittableRandom;
 import java.util.UUID;
 import java.util.stream.Collectors;
 
 import org.xlbean.XlBean;
 import org.xlbean.util.FieldAccessHelper;
 
-import com.ibm.icu.text.Transliterator;
-
 import groovy.lang.Script;
 
 public abstract class GeneratorDsl extends Script {
 
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+
     private PersonGenerator generator;
+    private SplittableRandom random;
 
-    public List<XlBean> generate(String targetType) {
+    /**
+     * Returns the random of the current round. Scripts can use it as
+     * {@code random}, e.g. {@code random.nextInt(10)}.
+     */
+    public SplittableRandom getRandom() {
+        if (getBinding() instanceof GenerationBinding) {
+            return ((GenerationBinding) getBinding()).getRandom();
+        }
+        if (random == null) {
+            random = new SplittableRandom();
+        }
+        return random;
+    }
+
+    /**
+     * Returns the instance being generated ({@code _this}), or null while a
+     * condition is evaluated. Typed alternative to {@code _this} for
+     * statically compiled scripts, e.g. {@code thisBean.value("id")}.
+     */
+    public XlBean getThisBean() {
+        return (XlBean) variable("_this");
+    }
+
+    /**
+     * Returns the instance {@code name} generated earlier in the current
+     * round, e.g. {@code instance("main")} for {@code _main}, or null if it
+     * is not generated.
+     */
+    public XlBean instance(String name) {
+        return (XlBean) variable("_" + name);
+    }
+
+    /**
+     * Returns the whole workbook ({@code xlbean}).
+     */
+    public XlBean getWorkbook() {
+        return (XlBean) getProperty("xlbean");
+    }
+
+    /**
+     * Returns the rows of the sheet {@code name}, e.g.
+     * {@code sheet("emailDomains")}.
+     */
+    public List<XlBean> sheet(String name) {
+        return getWorkbook().list(name);
+    }
+
+    /**
+     * Returns the single value {@code name} of the workbook, e.g.
+     * {@code setting("targetType")}.
+     */
+    public String setting(String name) {
+        return getWorkbook().value(name);
+    }
+
+    /**
+     * Returns the number of values a batch logic produces.
+     */
+    public int getBatchSize() {
+        Object batchSize = variable("batchSize");
+        return batchSize == null ? 1 : (Integer) batchSize;
+    }
+
+    private Object variable(String name) {
+        return getBinding().hasVariable(name) ? getBinding().getVariable(name) : null;
+    }
+
+    /**
+     * Returns the generator of nested rounds. With a
+     * {@link GenerationBinding}, it is shared by all scripts of the binding
+     * and reuses the compiled plan.
+     */
+    private PersonGenerator nestedGenerator() {
+        if (getBinding() instanceof GenerationBinding) {
+            return ((GenerationBinding) getBinding()).getNestedGenerator();
+        }
         if (generator == null) {
             generator = new PersonGenerator((XlBean) getProperty("xlbean"));
         }
-        return generator.generate(targetType);
+        return generator;
     }
 
-    public XlBean generateGet(String targetType, String instanceName) {
-        List<XlBean> generatedList = generate(targetType);
-        XlBean ret = generatedList
-            .stream()
-            .filter(elem -> instanceName.equals(elem.value("_instanceName")))
-            .findFirst()
-            .orElse(null);
-        return ret;
+    public List<XlBean> generate(String targetType) {
+        return nestedGenerator().generate(targetType, getRandom().split());
+    }
 
+    /**
+     * Generates {@code instanceName} of {@code targetType}, along with only
+     * the instances it refers to. Returns null if its condition is false.
+     */
+    public XlBean generateGet(String targetType, String instanceName) {
+        return nestedGenerator().generateInstance(targetType, instanceName, getRandom().split());
     }
 
+    /**
+     * Returns a version 4 UUID built from the random of the current round.
+     */
     public String generateUUID() {
-        return UUID.randomUUID().toString();
+        SplittableRandom random = getRandom();
+        long mostSigBits = (random.nextLong() & ~0xf000L) | 0x4000L;
+        long leastSigBits = (random.nextLong() & ~(0xc000L << 48)) | (0x8000L << 48);
+        return new UUID(mostSigBits, leastSigBits).toString();
     }
 
     public Object randomFrom(List<?> list) {
-        int index = (int) (Math.random() * list.size());
-        return list.get(index);
+        return list.get(getRandom().nextInt(list.size()));
     }
 
+    private TypelistIndex typelistIndex;
+
     @SuppressWarnings("unchecked")
+    private TypelistIndex typelistIndex() {
+        if (getBinding() instanceof GenerationBinding) {
+            return ((GenerationBinding) getBinding()).getPlan().getTypelistIndex();
+        }
+        if (typelistIndex == null) {
+            typelistIndex = new TypelistIndex((List<Map<String, Object>>) getProperty("typelists"));
+        }
+        return typelistIndex;
+    }
+
+    /**
+     * Returns rows of the "typelists" sheet whose type is {@code type}. The
+     * returned list is shared and unmodifiable.
+     */
     public List<Map<String, Object>> typelist(String type) {
-        List<Map<String, Object>> typelists = (List<Map<String, Object>>) getProperty("typelists");
-        return (List<Map<String, Object>>) typelists
-            .stream()
-            .filter(bean -> type.equals(bean.get("type")))
-            .collect(
-                Collectors.toList());
+        return typelistIndex().list(type);
     }
 
+    /**
+     * Returns key to value map of {@code type}. The returned map is shared and
+     * unmodifiable.
+     */
     public Map<String, Object> typelistAsMap(String type) {
-        final Map<String, Object> ret = new HashMap<>();
-        typelist(type).forEach(bean -> ret.put(bean.get("key").toString(), bean.get("value")));
-        return ret;
+        return typelistIndex().asMap(type);
     }
 
     public String typelistValue(String type, String key) {
-        return typelist(type)
-            .stream()
-            .filter(elem -> key.equals(elem.get("key")))
-            .findFirst()
-            .map(Object::toString)
-            .orElse(null);
+        Map<String, Object> row = typelistIndex().get(type, key);
+        return row == null ? null : row.toString();
     }
 
     public Object randomFromTypelist(String type) {
@@ -77,74 +171,135 @@ public abstract class GeneratorDsl extends Script {
     }
 
     public Object randomFromTypelistNot(String type, String excludeKey) {
-        List<Map<String, Object>> excludedList = typelist(type)
+        List<Map<String, Object>> list = typelist(type);
+        int excludedIndex = typelistIndex().indexOf(type, excludeKey);
+        if (excludedIndex == -1) {
+            return randomFrom(list);
+        }
+        if (excludedIndex >= 0) {
+            int index = getRandom().nextInt(list.size() - 1);
+            return list.get(index < excludedIndex ? index : index + 1);
+        }
+        // the key appears more than once
+        List<Map<String, Object>> excludedList = list
             .stream()
             .filter(elem -> !excludeKey.equals(elem.get("key")))
             .collect(Collectors.toList());
         return randomFrom(excludedList);
     }
 
+    /**
+     * Returns a random number from {@code from} (inclusive) to {@code to}
+     * (exclusive), or {@code from} if {@code to} is not greater than it.
+     */
     public int randomIntBetween(int from, int to) {
-        if (from > to) {
+        if (from >= to) {
             return from;
         }
-        return (int) ((to - from) * Math.random() + from);
+        return from + getRandom().nextInt(to - from);
     }
 
     public String generateDateOfBirthBetween(int ageFrom, int ageTo) {
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd");
-
         LocalDate dateOfBirth = LocalDate.now().minus(Period.ofDays((ageTo - ageFrom) * 365));
 
-        return formatter.format(dateOfBirth);
+        return DATE_FORMATTER.format(dateOfBirth);
     }
 
     public String generateDateOfBirth(int age) {
-        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd");
-
         LocalDate dateOfBirth = LocalDate.now().minus(Period.ofDays(age * 365));
 
-        return formatter.format(dateOfBirth);
+        return DATE_FORMATTER.format(dateOfBirth);
     }
 
+    /**
+     * Transliterates {@code text} with the ICU transform {@code id}, e.g.
+     * "Katakana-Hiragana".
+     */
+    public String transliterate(String id, String text) {
+        return TransliteratorCache.transliterate(id, text);
+    }
+
+    /**
+     * Transliterates {@code text} into latin characters.
+     */
+    public String transliterate(String text) {
+        return transliterate("Any-Latin", text);
+    }
+
+    /**
+     * Joins {@code strings} with "_", appends a random domain from the
+     * "emailDomains" sheet and transliterates the result into latin
+     * characters. Each part is transliterated on its own so that results can
+     * be reused across records.
+     */
     @SuppressWarnings("rawtypes")
     public String generateEmailFrom(String... strings) {
-        String email = String.join("_", strings) + "@" + ((Map) randomFrom((List) getProperty("emailDomains"))).get(
-            "value");
-        Transliterator transliterator = Transliterator.getInstance("Any-Latin");
-        return transliterator.transliterate(email);
+        StringBuilder email = new StringBuilder();
+        for (String string : strings) {
+            if (email.length() > 0) {
+                email.append('_');
+            }
+            email.append(transliterate(String.valueOf(string)));
+        }
+        Object domain = ((Map) randomFrom((List) getProperty("emailDomains"))).get("value");
+        return email.append('@').append(transliterate(String.valueOf(domain))).toString();
     }
 
     public String generatePhone(String phoneType) {
         switch (phoneType) {
         case "HOME":
-            return String.format("03-%04d-%04d", (int) (Math.random() * 10000), (int) (Math.random() * 10000));
+            return String.format("03-%04d-%04d", getRandom().nextInt(10000), getRandom().nextInt(10000));
         case "MOBILE":
-            return String.format("090-%04d-%04d", (int) (Math.random() * 10000), (int) (Math.random() * 10000));
+            return String.format("090-%04d-%04d", getRandom().nextInt(10000), getRandom().nextInt(10000));
         }
         return "";
     }
 
-    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private AddressTable addressTable;
+
+    @SuppressWarnings("unchecked")
+    private AddressTable addressTable() {
+        if (getBinding() instanceof GenerationBinding) {
+            return ((GenerationBinding) getBinding()).getPlan().getAddressTable();
+        }
+        if (addressTable == null) {
+            addressTable = new AddressTable(
+                (List<Map<String, Object>>) getProperty("addresses"),
+                (List<Map<String, Object>>) getProperty("mansions"));
+        }
+        return addressTable;
+    }
+
+    /**
+     * Returns a random row of the "addresses" sheet with "address1" and
+     * "address1Kanji" added. The returned map is a new copy owned by the
+     * caller; the sheet itself is never modified.
+     */
     public Map<String, Object> generateAddress() {
-        Map<String, Object> address = (Map) randomFrom((List) getProperty("addresses"));
-        String address1 = String.format("%s-%s", randomIntBetween(1, 9), randomIntBetween(1, 30));
-        String address1Kanji = address1;
+        AddressTable table = addressTable();
+        Map<String, Object> address = table.getAddress(getRandom().nextInt(table.getAddressCount()));
+
+        StringBuilder address1 = new StringBuilder(32)
+            .append(randomIntBetween(1, 9))
+            .append('-')
+            .append(randomIntBetween(1, 30));
+        StringBuilder address1Kanji = new StringBuilder(32).append(address1);
         if (randomBoolean()) {
             // mansion
-            Map<String, String> mansion = (Map) randomFrom((List) getProperty("mansions"));
-            String roomNumber = String.format(" %d", (int) (Math.random() * 1000) + 100);
-            address1 = address1 + " "
-                    + String.format(mansion.get("name"), address.get("town"))
-                    + roomNumber;
-            address1Kanji = address1Kanji + " "
-                    + String.format(mansion.get("nameKanji"), address.get("townKanji"))
-                    + roomNumber;
+            AddressTable.Mansion mansion = table.getMansion(getRandom().nextInt(table.getMansionCount()));
+            int roomNumber = getRandom().nextInt(1000) + 100;
+            address1.append(' ');
+            mansion.appendName(address1, address.get("town"));
+            address1.append(' ').append(roomNumber);
+            address1Kanji.append(' ');
+            mansion.appendNameKanji(address1Kanji, address.get("townKanji"));
+            address1Kanji.append(' ').append(roomNumber);
         }
-        address.put("address1", address1);
-        address.put("address1Kanji", address1Kanji);
 
-        return address;
+        Map<String, Object> ret = new LinkedHashMap<>(address);
+        ret.put("address1", address1.toString());
+        ret.put("address1Kanji", address1Kanji.toString());
+        return ret;
     }
 
     public Boolean randomBoolean() {
@@ -152,17 +307,105 @@ public abstract class GeneratorDsl extends Script {
     }
 
     public Boolean randomBoolean(double trueRatio) {
-        return Math.random() <= trueRatio;
+        return getRandom().nextDouble() <= trueRatio;
     }
 
     public String randomDigit(int num) {
         StringBuilder sb = new StringBuilder();
         for (int i = 0; i < num; i++) {
-            sb.append((int) (Math.random() * 10));
+            sb.append(getRandom().nextInt(10));
         }
         return sb.toString();
     }
 
+    /**
+     * Returns {@code count} strings of {@code num} random digits, e.g.
+     * {@code randomDigits(8, batchSize)} in a batch logic.
+     */
+    public List<String> randomDigits(int num, int count) {
+        SplittableRandom random = getRandom();
+        List<String> ret = new ArrayList<>(count);
+        char[] digits = new char[num];
+        for (int i = 0; i < count; i++) {
+            for (int j = 0; j < num; j++) {
+                digits[j] = (char) ('0' + random.nextInt(10));
+            }
+            ret.add(new String(digits));
+        }
+        return ret;
+    }
+
+    /**
+     * Returns {@code count} random numbers from {@code from} (inclusive) to
+     * {@code to} (exclusive).
+     */
+    public List<Integer> randomIntsBetween(int from, int to, int count) {
+        List<Integer> ret = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ret.add(randomIntBetween(from, to));
+        }
+        return ret;
+    }
+
+    /**
+     * Returns {@code count} random elements of {@code list}.
+     */
+    public List<Object> randomFrom(List<?> list, int count) {
+        SplittableRandom random = getRandom();
+        List<Object> ret = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ret.add(list.get(random.nextInt(list.size())));
+        }
+        return ret;
+    }
+
+    /**
+     * Returns {@code count} phone numbers of {@code phoneType} as
+     * {@link #generatePhone(String)} does.
+     */
+    public List<String> generatePhones(String phoneType, int count) {
+        String prefix;
+        switch (phoneType) {
+        case "HOME":
+            prefix = "03-";
+            break;
+        case "MOBILE":
+            prefix = "090-";
+            break;
+        default:
+            return new ArrayList<>(Collections.nCopies(count, ""));
+        }
+        SplittableRandom random = getRandom();
+        List<String> ret = new ArrayList<>(count);
+        StringBuilder sb = new StringBuilder(16);
+        for (int i = 0; i < count; i++) {
+            sb.setLength(0);
+            sb.append(prefix);
+            appendDigits(sb, random.nextInt(10000), 4);
+            sb.append('-');
+            appendDigits(sb, random.nextInt(10000), 4);
+            ret.add(sb.toString());
+        }
+        return ret;
+    }
+
+    /**
+     * Returns {@code count} version 4 UUIDs.
+     */
+    public List<String> generateUUIDs(int count) {
+        List<String> ret = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ret.add(generateUUID());
+        }
+        return ret;
+    }
+
+    private static void appendDigits(StringBuilder sb, int value, int width) {
+        for (int divisor = (int) Math.pow(10, width - 1); divisor > 0; divisor /= 10) {
+            sb.append((char) ('0' + value / divisor % 10));
+        }
+    }
+
     public void putSafe(String key, Object value, XlBean target) {
         FieldAccessHelper.setValue(key, value, target);
     }
@@ -0,0 +1,306 @@
+package io.github.aji3.persongenerator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xlbean.XlBean;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Resident HTTP server which generates records on request.
+ *
+ * <p>
+ * The workbook is loaded and compiled once and kept in memory together with
+ * one {@link ParallelPersonGenerator}, whose workers and compiled scripts are
+ * shared by all requests, so requests only pay for generation.
+ * {@code GET /generate?count=10&type=person&seed=1}
+ * streams the generated records back as a JSON array, or as JSON lines with
+ * {@code format=jsonl}. {@code type} defaults to the target type of the
+ * workbook and {@code seed} to a random seed, which is returned in the
+ * {@code X-Seed} header. The same seed returns the same records. A
+ * {@code count} above the configured maximum is rejected.
+ *
+ * <p>
+ * Before each request the modification time and size of the workbook are
+ * checked, and a changed workbook is loaded and compiled again. If it fails
+ * to load or compile, the error is logged and the previous plan is kept until
+ * the workbook changes again.
+ *
+ * <p>
+ * The server listens on the loopback address only.
+ */
+public class GeneratorServer implements AutoCloseable {
+
+    private static Logger log = LoggerFactory.getLogger(GeneratorServer.class);
+
+    private static final int DEFAULT_COUNT = 10;
+    private static final int HANDLER_THREADS = 4;
+
+    private final File workbookFile;
+    private final Supplier<XlBean> loader;
+    private final int numberOfThreads;
+    private final int scriptCacheSize;
+    private final boolean compileStatic;
+    private final int maxCount;
+    private final HttpServer server;
+    private final ExecutorService handlers;
+
+    private volatile LoadedWorkbook workbook;
+
+    /**
+     * @param workbookFile
+     *            workbook to watch for changes
+     * @param xlbean
+     *            workbook model already loaded from {@code workbookFile}
+     * @param loader
+     *            loads the workbook model on changes
+     * @param port
+     *            port to listen on
+     * @param numberOfThreads
+     *            generator threads per request
+     * @param scriptCacheSize
+     *            maximum number of script instances each generator keeps. 0
+     *            for unlimited.
+     * @param compileStatic
+     *            true to compile scripts statically where possible
+     * @param maxCount
+     *            largest {@code count} of a request
+     */
+    public GeneratorServer(
+            File workbookFile,
+            XlBean xlbean,
+            Supplier<XlBean> loader,
+            int port,
+            int numberOfThreads,
+            int scriptCacheSize,
+            boolean compileStatic,
+            int maxCount)
+            throws IOException {
+        this.workbookFile = workbookFile;
+        this.loader = loader;
+        this.numberOfThreads = numberOfThreads;
+        this.scriptCacheSize = scriptCacheSize;
+        this.compileStatic = compileStatic;
+        this.maxCount = maxCount;
+        this.workbook = compile(xlbean, workbookFile.lastModified(), workbookFile.length());
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.handlers = Executors.newFixedThreadPool(HANDLER_THREADS, r -> {
+            Thread thread = new Thread(r, "server-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/generate", this::handleGenerate);
+        server.setExecutor(handlers);
+    }
+
+    public void start() {
+        server.start();
+        log.info("Listening on http://localhost:{}/generate", server.getAddress().getPort());
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        handlers.shutdownNow();
+        synchronized (this) {
+            workbook.retire();
+        }
+    }
+
+    private LoadedWorkbook compile(XlBean xlbean, long lastModified, long length) {
+        GenerationPlan plan = GenerationPlan.compile(xlbean, compileStatic);
+        ParallelPersonGenerator generator = new ParallelPersonGenerator(
+            plan,
+            numberOfThreads,
+            scriptCacheSize,
+            RandomSource.unseeded(),
+            new GenerationMetrics());
+        return new LoadedWorkbook(plan, generator, xlbean.value("targetType"), lastModified, length);
+    }
+
+    /**
+     * Returns the current workbook, reloading it first if the file changed.
+     * A workbook which fails to reload is not tried again until it changes.
+     * The caller must {@link LoadedWorkbook#release() release} it.
+     */
+    private synchronized LoadedWorkbook currentWorkbook() {
+        LoadedWorkbook current = workbook;
+        long lastModified = workbookFile.lastModified();
+        long length = workbookFile.length();
+        if (current.lastModified != lastModified || current.length != length) {
+            log.info("Workbook {} changed. Reloading.", workbookFile);
+            try {
+                LoadedWorkbook reloaded = compile(loader.get(), lastModified, length);
+                current.retire();
+                current = reloaded;
+            } catch (RuntimeException e) {
+                log.error("Reload failed. Keeping the previous workbook until {} changes again.", workbookFile, e);
+                current.lastModified = lastModified;
+                current.length = length;
+            }
+            workbook = current;
+        }
+        current.acquire();
+        return current;
+    }
+
+    private void handleGenerate(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                sendError(exchange, 405, "Only GET is supported.");
+                return;
+            }
+            Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+            LoadedWorkbook current = currentWorkbook();
+            try {
+                generate(exchange, parameters, current);
+            } finally {
+                current.release();
+            }
+        } catch (RuntimeException e) {
+            log.error("Request {} failed", exchange.getRequestURI(), e);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void generate(HttpExchange exchange, Map<String, String> parameters, LoadedWorkbook current)
+            throws IOException {
+        String targetType = parameters.getOrDefault("type", current.targetType);
+        if (current.plan.getInstances(targetType).isEmpty()) {
+            sendError(exchange, 400, String.format("No instance is defined for type %s", targetType));
+            return;
+        }
+        int count;
+        RandomSource randomSource;
+        try {
+            count = parameters.containsKey("count") ? Integer.parseInt(parameters.get("count")) : DEFAULT_COUNT;
+            randomSource = parameters.containsKey("seed")
+                    ? new RandomSource(Long.parseLong(parameters.get("seed")))
+                    : RandomSource.unseeded();
+        } catch (NumberFormatException e) {
+            sendError(exchange, 400, "count and seed must be numbers.");
+            return;
+        }
+        if (count < 0 || count > maxCount) {
+            sendError(exchange, 400, String.format("count must be between 0 and %d.", maxCount));
+            return;
+        }
+        boolean jsonl = "jsonl".equalsIgnoreCase(parameters.get("format"));
+
+        exchange.getResponseHeaders().set(
+            "Content-Type",
+            jsonl ? "application/x-ndjson; charset=utf-8" : "application/json; charset=utf-8");
+        exchange.getResponseHeaders().set("X-Seed", String.valueOf(randomSource.getSeed()));
+        exchange.sendResponseHeaders(200, 0);
+        long start = System.nanoTime();
+        try (JsonRecordSink sink = new JsonRecordSink(
+            exchange.getResponseBody(),
+            jsonl ? JsonRecordSink.Format.JSONL : JsonRecordSink.Format.ARRAY)) {
+            current.generator.generate(targetType, 0, count, randomSource, records -> {
+                try {
+                    for (XlBean record : records) {
+                        sink.write(record);
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+        }
+        log.info(
+            "Generated {} {} with seed {} in {} ms",
+            count,
+            targetType,
+            randomSource.getSeed(),
+            (System.nanoTime() - start) / 1_000_000);
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        byte[] body = (message + "\n").getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> ret = new HashMap<>();
+        if (query == null || query.isEmpty()) {
+            return ret;
+        }
+        for (String pair : query.split("&")) {
+            int separator = pair.indexOf('=');
+            String key = separator < 0 ? pair : pair.substring(0, separator);
+            String value = separator < 0 ? "" : pair.substring(separator + 1);
+            ret.put(URLDecoder.decode(key, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+        }
+        return ret;
+    }
+
+    /**
+     * A compiled workbook and its generator. The generator is closed once the
+     * workbook is replaced and no request uses it any more.
+     */
+    private static class LoadedWorkbook {
+        private final GenerationPlan plan;
+        private final ParallelPersonGenerator generator;
+        private final String targetType;
+        private long lastModified;
+        private long length;
+        private int users;
+        private boolean retired;
+
+        LoadedWorkbook(
+                GenerationPlan plan,
+                ParallelPersonGenerator generator,
+                String targetType,
+                long lastModified,
+                long length) {
+            this.plan = plan;
+            this.generator = generator;
+            this.targetType = targetType;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+
+        synchronized void acquire() {
+            users++;
+        }
+
+        synchronized void release() {
+            if (--users == 0 && retired) {
+                generator.close();
+            }
+        }
+
+        synchronized void retire() {
+            retired = true;
+            if (users == 0) {
+                generator.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package io.github.aji3.persongenerator;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import io.github.aji3.persongenerator.GenerationPlan.GeneratorStep;
+import io.github.aji3.persongenerator.GenerationPlan.InstancePlan;
+
+/**
+ * State of an incremental run: the seed, a hash of each generator logic and
+ * the value each generator produced in each round.
+ *
+ * <p>
+ * A new state is created against the state of the previous run. While
+ * generating, {@link PersonGenerator} reuses the previous value of a step if
+ * its logic is unchanged and none of the fields it refers to (see
+ * {@link LogicReferences}) got a different value in the same round, and runs
+ * the step otherwise. Since every step draws from its own random, a step
+ * which is run again produces the same value it would in a full run.
+ * Conditions are always evaluated.
+ *
+ * <p>
+ * The file is JSON lines: a header with the seed, the target type and the
+ * logic hashes, followed by one line per round holding the values by
+ * instance name and step id. All rounds are held in memory, which suits
+ * fixture sized runs.
+ */
+public class IncrementalState {
+
+    private static Logger log = LoggerFactory.getLogger(IncrementalState.class);
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final long seed;
+    private final String targetType;
+    private final Map<String, String> logicHashes;
+    private final ConcurrentMap<Long, Map<String, Map<String, JsonNode>>> rounds = new ConcurrentHashMap<>();
+
+    private final IncrementalState previous;
+    private final Set<String> changedSteps;
+    private final LongAdder executed = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+
+    /**
+     * Creates an empty state for a run of {@code plan}.
+     *
+     * @param previous
+     *            state of the previous run, or null. Ignored if it was
+     *            generated with another seed or target type.
+     */
+    public IncrementalState(GenerationPlan plan, String targetType, long seed, IncrementalState previous) {
+        this.seed = seed;
+        this.targetType = targetType;
+        this.logicHashes = new HashMap<>();
+        for (InstancePlan instance : plan.getInstances(targetType)) {
+            for (GeneratorStep step : instance.getSteps()) {
+                logicHashes.put(step.getId(), hash(step));
+            }
+        }
+        if (previous != null && (previous.seed != seed || !previous.targetType.equals(targetType))) {
+            log.info("Previous state was generated with another seed or target type. Generating all fields.");
+            previous = null;
+        }
+        this.previous = previous;
+        this.changedSteps = new HashSet<>();
+        if (previous != null) {
+            logicHashes.forEach((id, hash) -> {
+                if (!hash.equals(this.previous.logicHashes.get(id))) {
+                    changedSteps.add(id);
+                }
+            });
+            log.info("Changed generators: {}", new TreeSet<>(changedSteps));
+        }
+    }
+
+    private IncrementalState(long seed, String targetType, Map<String, String> logicHashes) {
+        this.seed = seed;
+        this.targetType = targetType;
+        this.logicHashes = logicHashes;
+        this.previous = null;
+        this.changedSteps = Collections.emptySet();
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public String getTargetType() {
+        return targetType;
+    }
+
+    /**
+     * Returns the ids of steps whose logic changed since the previous run.
+     */
+    public Set<String> getChangedSteps() {
+        return Collections.unmodifiableSet(changedSteps);
+    }
+
+    boolean isChanged(GeneratorStep step) {
+        return changedSteps.contains(step.getId());
+    }
+
+    /**
+     * Returns the values of the previous run for {@code round} by instance
+     * name and step id, or null if there are none.
+     */
+    Map<String, Map<String, JsonNode>> previousRound(long round) {
+        return previous == null ? null : previous.rounds.get(round);
+    }
+
+    void record(long round, Map<String, Map<String, JsonNode>> values) {
+        rounds.put(round, values);
+    }
+
+    void stepExecuted() {
+        executed.increment();
+    }
+
+    void stepReused() {
+        reused.increment();
+    }
+
+    public long getExecutedCount() {
+        return executed.sum();
+    }
+
+    public long getReusedCount() {
+        return reused.sum();
+    }
+
+    static JsonNode toNode(Object value) {
+        return mapper.valueToTree(value);
+    }
+
+    static Object fromNode(JsonNode node) {
+        try {
+            return mapper.treeToValue(node, Object.class);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns a hash of the logic and batch size of {@code step}.
+     */
+    private static String hash(GeneratorStep step) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] bytes = digest.digest(
+                (step.getBatchSize() + "\n" + step.getLogic().getSource()).getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 16; i++) {
+                sb.append(String.format("%02x", bytes[i]));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Reads the state written by {@link #write(File)}. Returns null if
+     * {@code file} does not exist.
+     */
+    public static IncrementalState read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            JsonNode header = mapper.readTree(reader.readLine());
+            Map<String, String> hashes = new HashMap<>();
+            header.get("logicHashes").fields().forEachRemaining(e -> hashes.put(e.getKey(), e.getValue().asText()));
+            IncrementalState state = new IncrementalState(
+                header.get("seed").asLong(),
+                header.get("targetType").asText(),
+                hashes);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                JsonNode round = mapper.readTree(line);
+                Map<String, Map<String, JsonNode>> instances = new LinkedHashMap<>();
+                Iterator<Map.Entry<String, JsonNode>> it = round.get("instances").fields();
+                while (it.hasNext()) {
+                    Map.Entry<String, JsonNode> instance = it.next();
+                    Map<String, JsonNode> values = new HashMap<>();
+                    instance.getValue().fields().forEachRemaining(e -> values.put(e.getKey(), e.getValue()));
+                    instances.put(instance.getKey(), values);
+                }
+                state.rounds.put(round.get("round").asLong(), instances);
+            }
+            return state;
+        } catch (IOException | RuntimeException e) {
+            log.warn("Ignoring unreadable state file {}: {}", file, e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Writes this state to {@code file}, replacing it only once it is
+     * complete.
+     */
+    public void write(File file) {
+        File temp = new File(file.getPath() + ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+            ObjectNode header = JsonNodeFactory.instance.objectNode();
+            header.put("seed", seed);
+            header.put("targetType", targetType);
+            header.set("logicHashes", mapper.valueToTree(new TreeMap<>(logicHashes)));
+            writer.write(mapper.writeValueAsString(header));
+            writer.newLine();
+            for (Map.Entry<Long, Map<String, Map<String, JsonNode>>> round : new TreeMap<>(rounds).entrySet()) {
+                ObjectNode line = JsonNodeFactory.instance.objectNode();
+                line.put("round", round.getKey());
+                line.set("instances", mapper.valueToTree(round.getValue()));
+                writer.write(mapper.writeValueAsString(line));
+                writer.newLine();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package io.github.aji3.persongenerator;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xlbean.XlBean;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Writes records to a JSON file record by record.
+ *
+ * <p>
+ * In {@link Format#ARRAY} format the file is one JSON array, the same as
+ * serializing the whole list at once. In {@link Format#JSONL} format each
+ * record is written on its own line (newline-delimited JSON), so the file can
+ * be consumed while it is being written. Either format can be gzip
+ * compressed.
+ */
+public class JsonRecordSink implements RecordSink {
+
+    private static Logger log = LoggerFactory.getLogger(JsonRecordSink.class);
+
+    /**
+     * Shared by all sinks. Records are flushed by the generator's buffer, not
+     * after each record.
+     */
+    private static final ObjectMapper mapper = new ObjectMapper()
+        .disable(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+
+    private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+    public enum Format {
+        ARRAY, JSONL
+    }
+
+    private String fileName;
+    private Format format;
+    private JsonGenerator generator;
+
+    public JsonRecordSink(String fileName) throws IOException {
+        this(fileName, Format.ARRAY, false, new GenerationMetrics());
+    }
+
+    public JsonRecordSink(String fileName, GenerationMetrics metrics) throws IOException {
+        this(fileName, Format.ARRAY, false, metrics);
+    }
+
+    /**
+     * @param fileName
+     *            file to write to. The name is used as is; add ".gz" when
+     *            {@code gzip} is true.
+     * @param format
+     *            array or newline-delimited JSON
+     * @param gzip
+     *            true to compress the output with gzip
+     * @param metrics
+     *            metrics to report written bytes to
+     */
+    public JsonRecordSink(String fileName, Format format, boolean gzip, GenerationMetrics metrics)
+            throws IOException {
+        this.fileName = fileName;
+        this.format = format;
+        OutputStream out = metrics.countBytes(fileName, new FileOutputStream(fileName));
+        if (gzip) {
+            out = new GZIPOutputStream(out, GZIP_BUFFER_SIZE);
+        }
+        start(out);
+    }
+
+    /**
+     * Writes to {@code out}, e.g. a response body. {@code out} is closed by
+     * {@link #close()}.
+     */
+    public JsonRecordSink(OutputStream out, Format format) throws IOException {
+        this.format = format;
+        start(out);
+    }
+
+    private void start(OutputStream out) throws IOException {
+        this.generator = mapper.getFactory().createGenerator(out, JsonEncoding.UTF8);
+        if (format == Format.ARRAY) {
+            generator.writeStartArray();
+        } else {
+            generator.setRootValueSeparator(null);
+        }
+    }
+
+    @Override
+    public void write(XlBean record) throws IOException {
+        mapper.writeValue(generator, record);
+        if (format == Format.JSONL) {
+            generator.writeRaw('\n');
+        }
+    }
+
+    /**
+     * Writes the value at the current token of {@code parser} as a record
+     * without binding it, e.g. to merge JSON files.
+     */
+    public void copy(JsonParser parser) throws IOException {
+        generator.copyCurrentStructure(parser);
+        if (format == Format.JSONL) {
+            generator.writeRaw('\n');
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (format == Format.ARRAY) {
+            generator.writeEndArray();
+        }
+        generator.close();
+        if (fileName != null) {
+            log.info("Result in JSON format saved to {}", fileName);
+        }
+    }
+
+    @Override
+    public void abort() throws IOException {
+        // do not close the array
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+        generator.close();
+        if (fileName != null) {
+            Files.deleteIfExists(Paths.get(fileName));
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package io.github.aji3.persongenerator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * References of a logic cell to fields of generated instances, found by
+ * scanning its source.
+ *
+ * <p>
+ * Recognized forms are {@code _this}, {@code thisBean} and
+ * {@code getThisBean()} for the instance being generated, and
+ * {@code _<name>} and {@code instance("<name>")} for other instances of the
+ * round. A following {@code .field}, {@code ?.field}, {@code ["field"]} or
+ * {@code .value("field")} (also {@code bean}, {@code list} and {@code get})
+ * narrows the reference to that field, and further property accessors narrow
+ * it to a nested path such as "family.married". Any other use refers to the
+ * whole instance. Access through {@code binding} or computed names is not
+ * detected.
+ */
+public class LogicReferences {
+
+    private static final Pattern HEAD = Pattern.compile(
+        "(?<![\\w.$])(?:(_this|thisBean|getThisBean\\(\\s*\\))|_(\\w+)|instance\\(\\s*['\"](\\w+)['\"]\\s*\\))");
+
+    private static final Pattern ACCESSOR = Pattern.compile(
+        "\\G\\s*(?:\\??\\.\\s*(\\w+)(\\s*\\(\\s*(?:['\"](\\w+)['\"])?)?|\\[\\s*['\"](\\w+)['\"]\\s*\\])");
+
+    private static final Set<String> FIELD_METHODS = new HashSet<>(Arrays.asList("value", "bean", "list", "get"));
+
+    private final List<Reference> references;
+
+    private LogicReferences(List<Reference> references) {
+        this.references = Collections.unmodifiableList(references);
+    }
+
+    /**
+     * Scans {@code source}. Names starting with "_" which are not in
+     * {@code instanceNames} (e.g. {@code _instanceName}) are ignored.
+     */
+    public static LogicReferences parse(String source, Collection<String> instanceNames) {
+        List<Reference> references = new ArrayList<>();
+        if (source == null) {
+            return new LogicReferences(references);
+        }
+        Matcher head = HEAD.matcher(source);
+        while (head.find()) {
+            String instance;
+            if (head.group(1) != null) {
+                instance = null;
+            } else {
+                instance = head.group(2) != null ? head.group(2) : head.group(3);
+                if (!instanceNames.contains(instance)) {
+                    continue;
+                }
+            }
+            Matcher accessor = ACCESSOR.matcher(source);
+            accessor.region(head.end(), source.length());
+            String field = null;
+            StringBuilder path = new StringBuilder();
+            while (accessor.lookingAt()) {
+                String name;
+                if (accessor.group(4) != null) {
+                    name = accessor.group(4);
+                } else if (accessor.group(2) == null) {
+                    name = accessor.group(1);
+                } else {
+                    if (field == null && FIELD_METHODS.contains(accessor.group(1))) {
+                        field = accessor.group(3);
+                        path.append(accessor.group(3));
+                    }
+                    break;
+                }
+                if (field == null) {
+                    field = name;
+                } else {
+                    path.append('.');
+                }
+                path.append(name);
+                accessor.region(accessor.end(), source.length());
+            }
+            references.add(new Reference(instance, field, field == null ? null : path.toString()));
+        }
+        return new LogicReferences(references);
+    }
+
+    public List<Reference> getReferences() {
+        return references;
+    }
+
+    /**
+     * Returns the root of {@code fieldPath}, e.g. "address" of
+     * "address.town" and "children" of "children[0].name".
+     */
+    public static String rootOf(String fieldPath) {
+        int end = fieldPath.length();
+        for (int i = 0; i < fieldPath.length(); i++) {
+            char c = fieldPath.charAt(i);
+            if (c == '.' || c == '[') {
+                end = i;
+                break;
+            }
+        }
+        return fieldPath.substring(0, end);
+    }
+
+    /**
+     * A reference to {@code field} of {@code instance}.
+     */
+    public static final class Reference {
+        private final String instance;
+        private final String field;
+        private final String path;
+
+        Reference(String instance, String field, String path) {
+            this.instance = instance;
+            this.field = field;
+            this.path = path;
+        }
+
+        /**
+         * Returns the referenced instance name, or null for the instance being
+         * generated.
+         */
+        public String getInstance() {
+            return instance;
+        }
+
+        /**
+         * Returns the referenced root field, or null if the whole instance may
+         * be used.
+         */
+        public String getField() {
+            return field;
+        }
+
+        /**
+         * Returns the accessed field path starting with {@link #getField()},
+         * e.g. "family.married", or null if the whole instance may be used.
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * Returns whether this reference may read the field {@code fieldRoot}
+         * (any field if null) of the instance {@code instanceName}, given that
+         * the logic belongs to {@code ownInstance}.
+         */
+        public boolean refersTo(String ownInstance, String instanceName, String fieldRoot) {
+            String target = instance == null ? ownInstance : instance;
+            return target.equals(instanceName) && (field == null || fieldRoot == null || field.equals(fieldRoot));
+        }
+
+        @Override
+        public String toString() {
+            return (instance == null ? "_this" : "_" + instance) + (path == null ? "" : "." + path);
+        }
+    }
+}
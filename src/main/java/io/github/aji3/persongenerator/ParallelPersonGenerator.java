@@ -0,0 +1,267 @@
+package io.github.aji3.persongenerator;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xlbean.XlBean;
+
+/**
+ * Runs {@link PersonGenerator#generate(String)} on a pool of worker threads.
+ *
+ * <p>
+ * {@link PersonGenerator} keeps a mutable script context, so every worker
+ * thread owns its own instance (and therefore its own {@code GroovyShell},
+ * binding and compiled scripts). The requested count is split into chunks of
+ * consecutive rounds and the chunks are passed on in submission order, so the
+ * result order is the same regardless of the number of threads. Only a
+ * bounded number of chunks is in flight at a time.
+ */
+public class ParallelPersonGenerator implements AutoCloseable {
+
+    private static Logger log = LoggerFactory.getLogger(ParallelPersonGenerator.class);
+
+    /**
+     * Number of chunks per worker. More than one so that a slow chunk does not
+     * leave the other workers idle at the end of the run.
+     */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /**
+     * Upper limit of rounds in a chunk, which keeps the memory held by
+     * in-flight chunks small for large runs.
+     */
+    private static final int MAX_CHUNK_SIZE = 256;
+
+    private final GenerationPlan plan;
+    private final RandomSource randomSource;
+    private final int numberOfThreads;
+    private final ExecutorService executor;
+    private final ThreadLocal<PersonGenerator> generators;
+    private final List<PersonGenerator> createdGenerators = Collections.synchronizedList(new ArrayList<>());
+
+    public ParallelPersonGenerator(XlBean xlbean, int numberOfThreads) {
+        this(GenerationPlan.compile(xlbean), numberOfThreads, 0, RandomSource.unseeded(), new GenerationMetrics());
+    }
+
+    /**
+     * @param plan
+     *            compiled plan shared by all workers
+     * @param scriptCacheSize
+     *            maximum number of script instances each worker keeps. 0 for
+     *            unlimited.
+     * @param randomSource
+     *            source of the random of each round. Rounds are seeded by
+     *            their index, so the output does not depend on the number of
+     *            threads.
+     * @param metrics
+     *            metrics all workers report to
+     */
+    public ParallelPersonGenerator(
+            GenerationPlan plan,
+            int numberOfThreads,
+            int scriptCacheSize,
+            RandomSource randomSource,
+            GenerationMetrics metrics) {
+        this(plan, numberOfThreads, scriptCacheSize, randomSource, metrics, null);
+    }
+
+    /**
+     * @param incrementalState
+     *            state of an incremental run shared by all workers, or null
+     */
+    public ParallelPersonGenerator(
+            GenerationPlan plan,
+            int numberOfThreads,
+            int scriptCacheSize,
+            RandomSource randomSource,
+            GenerationMetrics metrics,
+            IncrementalState incrementalState) {
+        this.plan = plan;
+        this.randomSource = randomSource;
+        this.numberOfThreads = Math.max(1, numberOfThreads);
+        this.generators = ThreadLocal.withInitial(() -> {
+            PersonGenerator generator = new PersonGenerator(
+                plan,
+                scriptCacheSize,
+                randomSource,
+                metrics,
+                incrementalState);
+            createdGenerators.add(generator);
+            return generator;
+        });
+        this.executor = this.numberOfThreads > 1
+                ? Executors.newFixedThreadPool(this.numberOfThreads, new WorkerThreadFactory())
+                : null;
+        metrics.setScriptCacheStatistics(this::getScriptCacheStatistics);
+    }
+
+    public int getNumberOfThreads() {
+        return numberOfThreads;
+    }
+
+    /**
+     * Generates {@code numberToGenerate} rounds of {@code targetType} and
+     * returns all generated beans in round order.
+     */
+    public List<XlBean> generate(String targetType, int numberToGenerate) {
+        List<XlBean> resultList = new ArrayList<>();
+        generate(targetType, numberToGenerate, resultList::addAll);
+        return resultList;
+    }
+
+    /**
+     * Generates {@code numberToGenerate} rounds of {@code targetType} and
+     * passes the generated beans to {@code consumer} chunk by chunk, in round
+     * order. {@code consumer} is always called from the calling thread.
+     */
+    public void generate(String targetType, int numberToGenerate, Consumer<List<XlBean>> consumer) {
+        generate(targetType, 0, numberToGenerate, consumer);
+    }
+
+    /**
+     * Generates the {@code numberToGenerate} rounds starting at round
+     * {@code firstRound}, e.g. the slice of one {@link Shard}. The rounds are
+     * the same as those of a run starting at round 0.
+     */
+    public void generate(String targetType, long firstRound, int numberToGenerate, Consumer<List<XlBean>> consumer) {
+        generate(targetType, firstRound, numberToGenerate, randomSource, consumer);
+    }
+
+    /**
+     * Generates the {@code numberToGenerate} rounds starting at round
+     * {@code firstRound} from {@code randomSource} instead of the random
+     * source of this generator, e.g. for a request with its own seed. Workers
+     * and their compiled scripts are reused, and calls may run concurrently.
+     */
+    public void generate(
+            String targetType,
+            long firstRound,
+            int numberToGenerate,
+            RandomSource randomSource,
+            Consumer<List<XlBean>> consumer) {
+        int chunkSize = Math.min(
+            MAX_CHUNK_SIZE,
+            Math.max(1, (numberToGenerate + numberOfThreads * CHUNKS_PER_THREAD - 1)
+                    / (numberOfThreads * CHUNKS_PER_THREAD)));
+        int batchSize = plan.getMaxBatchSize();
+        if (batchSize > 1) {
+            // align chunks to batches so that no batch is generated twice
+            chunkSize = (int) Math.min(Integer.MAX_VALUE, ((long) chunkSize + batchSize - 1) / batchSize * batchSize);
+        }
+        long end = firstRound + numberToGenerate;
+        if (executor == null) {
+            for (long from = firstRound; from < end; from = chunkEnd(from, chunkSize, end)) {
+                consumer.accept(generateChunk(targetType, from, chunkEnd(from, chunkSize, end), randomSource));
+            }
+            return;
+        }
+
+        int maxInFlight = numberOfThreads * 2;
+        Deque<Future<List<XlBean>>> inFlight = new ArrayDeque<>();
+        for (long from = firstRound; from < end; from = chunkEnd(from, chunkSize, end)) {
+            final long start = from;
+            final long to = chunkEnd(from, chunkSize, end);
+            if (inFlight.size() >= maxInFlight) {
+                consumer.accept(get(inFlight.poll()));
+            }
+            inFlight.add(executor.submit(() -> generateChunk(targetType, start, to, randomSource)));
+        }
+        while (!inFlight.isEmpty()) {
+            consumer.accept(get(inFlight.poll()));
+        }
+    }
+
+    /**
+     * Returns the end of the chunk starting at {@code from}. Chunks end at
+     * multiples of {@code chunkSize}, so a run starting in the middle of a
+     * batch only has one chunk sharing that batch with the previous shard.
+     */
+    private static long chunkEnd(long from, int chunkSize, long end) {
+        return Math.min((from / chunkSize + 1) * chunkSize, end);
+    }
+
+    private List<XlBean> generateChunk(String targetType, long from, long to, RandomSource randomSource) {
+        PersonGenerator generator = generators.get();
+        generator.setRandomSource(randomSource);
+        List<XlBean> resultList = new ArrayList<>();
+        for (long i = from; i < to; i++) {
+            resultList.addAll(generator.generate(targetType, i));
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Generated rounds {} to {}", from, to - 1);
+        }
+        return resultList;
+    }
+
+    private <T> T get(Future<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns script cache statistics summed over all workers.
+     */
+    public Map<String, Long> getScriptCacheStatistics() {
+        long size = 0;
+        long hits = 0;
+        long misses = 0;
+        long evictions = 0;
+        synchronized (createdGenerators) {
+            for (PersonGenerator generator : createdGenerators) {
+                ScriptCache cache = generator.getScriptCache();
+                size += cache.size();
+                hits += cache.getHitCount();
+                misses += cache.getMissCount();
+                evictions += cache.getEvictionCount();
+            }
+        }
+        Map<String, Long> ret = new LinkedHashMap<>();
+        ret.put("size", size);
+        ret.put("hits", hits);
+        ret.put("misses", misses);
+        ret.put("evictions", evictions);
+        return ret;
+    }
+
+    @Override
+    public void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        log.info("Script cache statistics: {}", getScriptCacheStatistics());
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger counter = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "generator-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -1,124 +1,527 @@
 package io.github.aji3.persongenerator;
 
+import java.lang.reflect.Array;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
-import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.runtime.InvokerHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xlbean.XlBean;
 import org.xlbean.util.FieldAccessHelper;
 import org.xlbean.util.XlBeanFactory;
 
-import groovy.lang.Binding;
-import groovy.lang.GroovyShell;
+import com.fasterxml.jackson.databind.JsonNode;
+
 import groovy.lang.Script;
+import io.github.aji3.persongenerator.GenerationPlan.CompiledScript;
+import io.github.aji3.persongenerator.GenerationPlan.GeneratorStep;
+import io.github.aji3.persongenerator.GenerationPlan.InstancePlan;
 
 public class PersonGenerator {
 
     private static Logger log = LoggerFactory.getLogger(PersonGenerator.class);
 
-    private GroovyShell shell;
-    private XlBean xlbean;
+    private GenerationBinding binding;
+    private GenerationPlan plan;
+    private ScriptCache scriptCache;
+    private RandomSource randomSource;
+    private GenerationMetrics metrics;
+    private long nextRound;
+    private long currentRound = -1;
+    private boolean countRecords = true;
+    private Map<GeneratorStep, Batch> batches = new IdentityHashMap<>();
+
+    private IncrementalState incrementalState;
+    /** Values of the previous run for the current round, by instance and step. */
+    private Map<String, Map<String, JsonNode>> previousValues;
+    /** Values of the current round to record, by instance and step. */
+    private Map<String, Map<String, JsonNode>> recordedValues;
+    /** "instance.field" (or "instance.*") whose value differs from the previous run. */
+    private Set<String> changedFields = new HashSet<>();
 
     public PersonGenerator(XlBean xlbean) {
+        this(GenerationPlan.compile(xlbean), 0);
+    }
 
-        CompilerConfiguration config = new CompilerConfiguration();
-        config.setScriptBaseClass("io.github.aji3.persongenerator.GeneratorDsl");
-        Binding binding = new Binding();
-        binding.setProperty("xlbean", xlbean);
-        shell = new GroovyShell(binding, config);
+    public PersonGenerator(GenerationPlan plan, int scriptCacheSize) {
+        this(plan, scriptCacheSize, RandomSource.unseeded(), new GenerationMetrics());
+    }
+
+    /**
+     * @param plan
+     *            compiled plan. The same plan can be shared by many generators.
+     * @param scriptCacheSize
+     *            maximum number of script instances to keep. 0 for unlimited.
+     * @param randomSource
+     *            source of the random of each round
+     * @param metrics
+     *            metrics to report to. Can be shared by many generators.
+     */
+    public PersonGenerator(
+            GenerationPlan plan,
+            int scriptCacheSize,
+            RandomSource randomSource,
+            GenerationMetrics metrics) {
+        this(plan, scriptCacheSize, randomSource, metrics, null);
+    }
+
+    /**
+     * @param incrementalState
+     *            state of an incremental run, or null. Rounds generated by
+     *            index reuse the values of its previous run where possible
+     *            and record their values to it.
+     */
+    public PersonGenerator(
+            GenerationPlan plan,
+            int scriptCacheSize,
+            RandomSource randomSource,
+            GenerationMetrics metrics,
+            IncrementalState incrementalState) {
+        this.plan = plan;
+        this.incrementalState = incrementalState;
+        binding = new GenerationBinding(plan, scriptCacheSize, metrics);
+
+        this.scriptCache = new ScriptCache(scriptCacheSize);
+        this.randomSource = randomSource;
+        this.metrics = metrics;
+    }
+
+    public ScriptCache getScriptCache() {
+        return scriptCache;
+    }
 
-        this.xlbean = xlbean;
+    /**
+     * Sets whether rounds are counted as output in the metrics. Generators
+     * of nested {@code generate} calls do not count theirs.
+     */
+    void setCountRecords(boolean countRecords) {
+        this.countRecords = countRecords;
     }
 
+    /**
+     * Sets the source of the random of the following rounds, e.g. the seed
+     * of a server request. Compiled scripts are kept; batches generated from
+     * the previous source are dropped.
+     */
+    public void setRandomSource(RandomSource randomSource) {
+        if (this.randomSource != randomSource) {
+            this.randomSource = randomSource;
+            batches.clear();
+        }
+    }
+
+    /**
+     * Generates the round following the last round generated by this
+     * generator.
+     */
     public List<XlBean> generate(String targetType) {
+        return generate(targetType, nextRound);
+    }
+
+    /**
+     * Generates the round at {@code round}. The result only depends on the
+     * seed of the random source and {@code round}: the condition of each
+     * instance and each step draw from their own random derived from both,
+     * so the values of a step do not change when other steps change. Each
+     * bean gets the record id "_recordId" ("&lt;round&gt;-&lt;instance name&gt;"),
+     * which is unique across the run and its shards.
+     */
+    public List<XlBean> generate(String targetType, long round) {
+        nextRound = round + 1;
+        return generate(targetType, randomSource.forRound(round), round);
+    }
+
+    /**
+     * Generates a round using {@code random} for all random values. Batch
+     * steps produce a batch of one value from {@code random}.
+     */
+    public List<XlBean> generate(String targetType, SplittableRandom random) {
+        return generate(targetType, random, -1, null);
+    }
+
+    /**
+     * Generates only {@code instanceName} of {@code targetType} and the
+     * instances it refers to, using {@code random} for all random values.
+     * Returns null if the condition of {@code instanceName} is false.
+     */
+    public XlBean generateInstance(String targetType, String instanceName, SplittableRandom random) {
+        List<XlBean> generated = generate(
+            targetType,
+            random,
+            -1,
+            plan.getRequiredInstances(targetType, instanceName));
+        for (XlBean bean : generated) {
+            if (instanceName.equals(bean.get("_instanceName"))) {
+                return bean;
+            }
+        }
+        return null;
+    }
+
+    private List<XlBean> generate(String targetType, SplittableRandom random, long round) {
+        return generate(targetType, random, round, null);
+    }
+
+    /**
+     * @param instanceNames
+     *            names of the instances to generate, or null for all
+     */
+    private List<XlBean> generate(
+            String targetType,
+            SplittableRandom random,
+            long round,
+            Set<String> instanceNames) {
         List<XlBean> resultList = new ArrayList<>();
-        for (XlBean instanceType : xlbean
-            .list("instanceTypes")
-            .stream()
-            .filter(type -> targetType.equals(type.value("type")))
-            .collect(Collectors.toList())) {
-            XlBean target = generateBlankInstance(targetType, instanceType);
-            if (evaluateGenerateCondition(resultList, instanceType)) {
-                log.info("Start generate {} {}", targetType, instanceType.value("name"));
-                runGeneratorAndPopulateTarget(getGenerators(targetType), target, resultList);
+        currentRound = round;
+        boolean incremental = incrementalState != null && round >= 0;
+        previousValues = incremental ? incrementalState.previousRound(round) : null;
+        recordedValues = incremental ? new LinkedHashMap<>() : null;
+        changedFields.clear();
+        binding.beginRound(random);
+        for (InstancePlan instance : plan.getInstances(targetType)) {
+            if (instanceNames != null && !instanceNames.contains(instance.getName())) {
+                continue;
+            }
+            long start = System.nanoTime();
+            XlBean target = generateBlankInstance(targetType, instance);
+            boolean generated = evaluateGenerateCondition(instance);
+            if (previousValues != null && generated != previousValues.containsKey(instance.getName())) {
+                changedFields.add(instance.getName() + ".*");
+            }
+            if (generated) {
+                log.debug("Start generate {} {}", targetType, instance.getName());
+                runGeneratorAndPopulateTarget(instance, target);
                 resultList.add(target);
-                log.info("End generate {} {}", targetType, instanceType.value("name"));
+                binding.setVariable(String.format("_%s", instance.getName()), target);
+                metrics.instanceGenerated(instance.getId(), System.nanoTime() - start);
+                log.debug("End generate {} {}", targetType, instance.getName());
             } else {
-                log.info("Skipped {} {}", targetType, instanceType.value("name"));
+                metrics.instanceSkipped(instance.getId());
+                log.debug("Skipped {} {}", targetType, instance.getName());
             }
         }
+        if (recordedValues != null) {
+            incrementalState.record(round, recordedValues);
+        }
+        if (countRecords) {
+            metrics.roundGenerated(resultList.size());
+        }
         return resultList;
     }
 
-    private List<XlBean> getGenerators(String targetType) {
-        return xlbean
-            .list("generators")
-            .stream()
-            .filter(item -> targetType.equals(item.bean("target").value("type")))
-            .collect(Collectors.toList());
+    /**
+     * Switches to the random of {@code id} in the current round. Rounds which
+     * are not generated by index keep using the random of the round.
+     */
+    private void useRandomOf(String id) {
+        if (currentRound >= 0) {
+            binding.setRandom(randomSource.forStep(currentRound, id));
+        }
     }
 
-    private XlBean generateBlankInstance(String type, XlBean instanceType) {
+    private XlBean generateBlankInstance(String type, InstancePlan instance) {
         XlBean newInstance = XlBeanFactory.getInstance().createBean();
         newInstance.put("_instanceType", type);
-        newInstance.put("_instanceName", instanceType.value("name"));
+        newInstance.put("_instanceName", instance.getName());
+        if (currentRound >= 0) {
+            newInstance.put("_recordId", currentRound + "-" + instance.getName());
+        }
         return newInstance;
     }
 
-    private boolean evaluateGenerateCondition(List<XlBean> generatedObjects, XlBean instanceType) {
-        setupScriptContext(null, generatedObjects);
-        String conditionLogic = instanceType.value("condition");
-        return (Boolean) shell.evaluate(conditionLogic);
+    private boolean evaluateGenerateCondition(InstancePlan instance) {
+        binding.setVariable("_this", null);
+        useRandomOf(instance.getId());
+        return (Boolean) getScript(instance.getCondition()).run();
+    }
+
+    private void runGeneratorAndPopulateTarget(InstancePlan instance, XlBean target) {
+        binding.setVariable("_this", target);
+
+        if (instance.hasParallelSteps() && currentRound >= 0 && recordedValues == null) {
+            runLevels(instance, target);
+            return;
+        }
+        Map<String, JsonNode> previous = previousValues == null ? null : previousValues.get(instance.getName());
+        Map<String, JsonNode> recorded = null;
+        if (recordedValues != null) {
+            recorded = new LinkedHashMap<>();
+            recordedValues.put(instance.getName(), recorded);
+        }
+        // script variables are not tracked, so once a step without a target
+        // field may have assigned a different value, all later steps run
+        boolean runAll = false;
+        for (GeneratorStep step : instance.getSteps()) {
+            runAll |= executeGenerator(instance, step, target, previous, recorded, runAll);
+        }
+    }
+
+    private Script getScript(CompiledScript compiled) {
+        return scriptCache.get(
+            compiled.getSource(),
+            source -> InvokerHelper.createScript(compiled.getScriptClass(), binding));
     }
 
-    private void runGeneratorAndPopulateTarget(List<XlBean> generators, XlBean target, List<XlBean> additionalBeans) {
-        setupScriptContext(target, additionalBeans);
+    /**
+     * Runs {@code step}, or reuses its previous value in an incremental run
+     * unless {@code runAll} is true or {@link #mustRun} says otherwise.
+     * Returns true if the step has no target field and its logic or inputs
+     * changed, so that the script variables it assigns may have changed.
+     */
+    private boolean executeGenerator(
+            InstancePlan instance,
+            GeneratorStep step,
+            XlBean target,
+            Map<String, JsonNode> previous,
+            Map<String, JsonNode> recorded,
+            boolean runAll) {
+        String targetField = step.getField();
+        log.trace("{}\t{}", targetField, step.getLogic().getSource());
 
-        generators.forEach(generator -> executeGenerator(generator, target));
+        boolean variablesChanged = targetField == null && previousValues != null && mustRun(instance, step);
+        Object result;
+        JsonNode resultNode = null;
+        if (previous != null && !runAll && previous.containsKey(step.getId()) && !mustRun(instance, step)) {
+            resultNode = previous.get(step.getId());
+            result = IncrementalState.fromNode(resultNode);
+            incrementalState.stepReused();
+        } else {
+            useRandomOf(step.getId());
+            result = step.isBatch() ? batchValue(step) : runScript(step);
+            if (recorded != null) {
+                incrementalState.stepExecuted();
+                resultNode = targetField == null ? null : IncrementalState.toNode(result);
+                if (previousValues != null && (variablesChanged || isChanged(previous, step, resultNode))) {
+                    changedFields.add(
+                        instance.getName() + "." + (targetField == null ? "*" : LogicReferences.rootOf(targetField)));
+                }
+            }
+        }
+        if (recorded != null && targetField != null) {
+            recorded.put(step.getId(), resultNode);
+        }
+        setResult(step, result, target);
+        return variablesChanged;
+    }
 
+    private void setResult(GeneratorStep step, Object result, XlBean target) {
+        String targetField = step.getField();
+        log.trace("RESULT: {}", result);
+        if (targetField != null) {
+            log.trace("SET: {} <- {}", targetField, result);
+            FieldAccessHelper.setValue(targetField, result, target);
+        }
     }
 
-    private void setupScriptContext(XlBean targetObject, List<XlBean> additionalBeans) {
-        xlbean.forEach((key, value) -> shell.setProperty(key, value));
-        shell.setProperty("xlbean", xlbean);
-        shell.setProperty("_this", targetObject);
-        additionalBeans.forEach(bean -> {
-            shell.setProperty(String.format("_%s", bean.value("_instanceName")), bean);
-        });
+    /**
+     * Runs the steps of {@code instance} level by level (see
+     * {@link FieldDependencyGraph#getLevels()}). Parallel steps which share
+     * their level with other steps run on the common pool, each with its own
+     * script instance and a copy of the round scope; the other steps run on
+     * this thread. Results are set to {@code target} once the whole level is
+     * done, in dependency order, so no script sees a half-written level.
+     * Parallel steps must not assign script variables, since assignments are
+     * not visible to other steps.
+     */
+    private void runLevels(InstancePlan instance, XlBean target) {
+        for (List<GeneratorStep> level : instance.getDependencies().getLevels()) {
+            Map<GeneratorStep, Future<Object>> detached = new IdentityHashMap<>();
+            if (level.size() > 1) {
+                Map<String, Object> variables = null;
+                for (GeneratorStep step : level) {
+                    if (step.isParallel() && !step.isBatch()) {
+                        if (variables == null) {
+                            variables = roundScope();
+                        }
+                        detached.put(step, ForkJoinPool.commonPool().submit(detachedTask(step, variables)));
+                    }
+                }
+            }
+            List<Object> results = new ArrayList<>(level.size());
+            for (GeneratorStep step : level) {
+                log.trace("{}\t{}", step.getField(), step.getLogic().getSource());
+                Future<Object> future = detached.get(step);
+                if (future != null) {
+                    results.add(join(future));
+                } else {
+                    useRandomOf(step.getId());
+                    results.add(step.isBatch() ? batchValue(step) : runScript(step));
+                }
+            }
+            for (int i = 0; i < level.size(); i++) {
+                setResult(level.get(i), results.get(i), target);
+            }
+        }
     }
 
-    private Map<String, Script> scriptMap = new HashMap<>();
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> roundScope() {
+        return new HashMap<>(binding.getVariables());
+    }
 
-    private Script getScript(String logic) {
-        Script ret = scriptMap.get(logic);
-        if (ret == null) {
-            ret = shell.parse(logic);
-            scriptMap.put(logic, ret);
+    @SuppressWarnings("unchecked")
+    private Callable<Object> detachedTask(GeneratorStep step, Map<String, Object> variables) {
+        long round = currentRound;
+        return () -> {
+            GenerationBinding detachedBinding = new GenerationBinding(plan, scriptCache.getMaxSize(), metrics);
+            detachedBinding.getVariables().putAll(variables);
+            detachedBinding.setRandom(randomSource.forStep(round, step.getId()));
+            return runScript(step, InvokerHelper.createScript(step.getLogic().getScriptClass(), detachedBinding));
+        };
+    }
+
+    private static Object join(Future<Object> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
         }
-        return ret;
     }
 
-    private void executeGenerator(XlBean generator, XlBean target) {
-        String instanceName = target.value("_instanceName");
-        String targetField = generator.bean("target").value("field");
-        XlBean logicInstance = generator.bean("logic");
-        String generatorLogic = logicInstance.value(instanceName);
-        log.trace("{}\t{}", targetField, generatorLogic);
+    /**
+     * Returns whether {@code step} must run although a previous value exists:
+     * its logic changed or it refers to a field whose value changed.
+     */
+    private boolean mustRun(InstancePlan instance, GeneratorStep step) {
+        if (incrementalState.isChanged(step)) {
+            return true;
+        }
+        for (String changed : changedFields) {
+            int dot = changed.indexOf('.');
+            String changedInstance = changed.substring(0, dot);
+            String changedField = changed.substring(dot + 1);
+            String fieldRoot = "*".equals(changedField) ? null : changedField;
+            for (LogicReferences.Reference reference : step.getReferences().getReferences()) {
+                if (reference.refersTo(instance.getName(), changedInstance, fieldRoot)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
 
-        if (generatorLogic == null) {
-            return;
+    /**
+     * Returns whether {@code result} differs from the previous value of
+     * {@code step}. Steps without a target field are considered changed only
+     * if their logic changed, since their effect is not known.
+     */
+    private boolean isChanged(Map<String, JsonNode> previous, GeneratorStep step, JsonNode result) {
+        if (step.getField() == null) {
+            return incrementalState.isChanged(step);
         }
+        JsonNode previousValue = previous == null ? null : previous.get(step.getId());
+        return previousValue == null || !previousValue.equals(result);
+    }
 
-        Object result = getScript(generatorLogic).run();
-        log.trace("RESULT: " + result);
-        if (targetField != null) {
-            log.trace("SET: {} <- {}", targetField, result);
-            FieldAccessHelper.setValue(targetField, result, target);
+    private Object runScript(GeneratorStep step) {
+        return runScript(step, getScript(step.getLogic()));
+    }
+
+    private Object runScript(GeneratorStep step, Script script) {
+        long start = System.nanoTime();
+        Object result;
+        try {
+            result = script.run();
+        } catch (RuntimeException e) {
+            metrics.scriptFailed(step.getId());
+            throw e;
+        }
+        metrics.scriptExecuted(step.getId(), System.nanoTime() - start);
+        return result;
+    }
+
+    /**
+     * Returns the value of the current round from the batch of {@code step}
+     * the round belongs to, running the logic if the batch is not generated
+     * yet. Batches only depend on the seed, the step and the batch index, so
+     * a batch which spans rounds generated by different generators yields the
+     * same values in each of them.
+     */
+    private Object batchValue(GeneratorStep step) {
+        int batchSize = currentRound < 0 ? 1 : step.getBatchSize();
+        long index = currentRound < 0 ? -1 : currentRound / batchSize;
+        Batch batch = batches.get(step);
+        if (batch == null || currentRound < 0 || batch.index != index) {
+            SplittableRandom roundRandom = binding.getRandom();
+            binding.setRandom(currentRound < 0 ? roundRandom.split() : randomSource.forBatch(step.getId(), index));
+            // batchSize is only visible to the batch logic
+            boolean hadBatchSize = binding.getVariables().containsKey("batchSize");
+            Object previousBatchSize = binding.getVariables().get("batchSize");
+            binding.setVariable("batchSize", batchSize);
+            try {
+                batch = new Batch(index, toList(step, runScript(step), batchSize));
+            } finally {
+                binding.setRandom(roundRandom);
+                if (hadBatchSize) {
+                    binding.setVariable("batchSize", previousBatchSize);
+                } else {
+                    binding.getVariables().remove("batchSize");
+                }
+            }
+            batches.put(step, batch);
+        }
+        return batch.values.get(currentRound < 0 ? 0 : (int) (currentRound % batchSize));
+    }
+
+    private List<?> toList(GeneratorStep step, Object result, int batchSize) {
+        List<?> values;
+        if (result instanceof List) {
+            values = (List<?>) result;
+        } else if (result instanceof Iterable) {
+            List<Object> list = new ArrayList<>();
+            ((Iterable<?>) result).forEach(list::add);
+            values = list;
+        } else if (result != null && result.getClass().isArray()) {
+            List<Object> list = new ArrayList<>();
+            for (int i = 0; i < Array.getLength(result); i++) {
+                list.add(Array.get(result, i));
+            }
+            values = list;
+        } else {
+            metrics.scriptFailed(step.getId());
+            throw new IllegalStateException(
+                String.format("Batch logic of %s must return a list but returned %s", step.getId(), result));
+        }
+        if (values.size() < batchSize) {
+            metrics.scriptFailed(step.getId());
+            throw new IllegalStateException(
+                String.format(
+                    "Batch logic of %s returned %d values for a batch of %d",
+                    step.getId(),
+                    values.size(),
+                    batchSize));
+        }
+        return values;
+    }
+
+    private static class Batch {
+        private final long index;
+        private final List<?> values;
+
+        Batch(long index, List<?> values) {
+            this.index = index;
+            this.values = values;
         }
     }
 }
@@ -1,15 +1,17 @@
 package io.github.aji3.persongenerator;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.Writer;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
@@ -17,95 +19,386 @@ import org.slf4j.LoggerFactory;
 import org.xlbean.XlBean;
 import org.xlbean.reader.XlBeanReader;
 import org.xlbean.util.XlBeanFactory;
-import org.xlbean.writer.XlBeanWriter;
-
-import com.fasterxml.jackson.databind.ObjectMapper;
 
 public class PersonGeneratorMain {
 
     private static Logger log = LoggerFactory.getLogger(PersonGeneratorMain.class);
 
     public static void main(String[] args) {
-        new PersonGeneratorMain().run();
+        PersonGeneratorMain main = new PersonGeneratorMain();
+        main.parseArguments(args);
+        main.run();
     }
 
     private String excelFileName = "person_generator.xlsx";
     private XlBean xlbean;
 
+    /**
+     * Settings given on the command line as {@code --key=value}. These take
+     * precedence over the workbook values of the same key.
+     */
+    private Map<String, String> arguments = new HashMap<>();
+
+    private void parseArguments(String[] args) {
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                System.err.println(String.format("Illegal argument %s. Arguments must be --key=value.", arg));
+                continue;
+            }
+            arguments.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+    }
+
+    private String setting(String key) {
+        String value = arguments.get(key);
+        return value != null || xlbean == null ? value : xlbean.value(key);
+    }
+
+    private int intSetting(String key, int defaultValue) {
+        String value = setting(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            System.err.println(
+                String.format("Illegal number format for %s field. Default number %d is used.", key, defaultValue));
+            return defaultValue;
+        }
+    }
+
     private void init() {
         XlBeanFactory.setInstance(new FlexibleXlBeanFactory());
+        xlbean = loadWorkbook();
+    }
 
+    private XlBean loadWorkbook() {
         log.info("Start loading excel {}", excelFileName);
-        xlbean = new XlBeanReader().read(new File(excelFileName));
+        File excelFile = new File(excelFileName);
+        // settings in the workbook are not available yet
+        String snapshotFileName = arguments.get("workbookSnapshot");
+        XlBean ret;
+        if (snapshotFileName == null || snapshotFileName.trim().isEmpty()) {
+            ret = new XlBeanReader().read(excelFile);
+        } else {
+            ret = WorkbookSnapshot
+                .readOrLoad(excelFile, new File(snapshotFileName), () -> new XlBeanReader().read(excelFile));
+        }
         log.info("End loading excel {}", excelFileName);
+        return ret;
     }
 
     public void run() {
 
         String now = DateTimeFormatter.ofPattern("yyyyMMddHHmmss").format(LocalDateTime.now());
 
-        init();
+        if (arguments.containsKey("merge")) {
+            runMerge();
+            return;
+        }
 
-        PersonGenerator generator = new PersonGenerator(xlbean);
+        init();
 
-        List<XlBean> resultList = new ArrayList<>();
+        if (setting("server") != null) {
+            runServer();
+            return;
+        }
 
-        int numberToGenerate = 10;
-        try {
-            numberToGenerate = Integer.parseInt(xlbean.value("numberToGenerate"));
-        } catch (NumberFormatException e) {
-            System.err.println("Illegal number format for numberToGenerate field. Default number 10 is used.");
+        int numberToGenerate = intSetting("numberToGenerate", 10);
+        int numberOfThreads = intSetting("numberOfThreads", 1);
+        Shard shard = isEmpty(setting("shard")) ? null : Shard.parse(setting("shard"));
+        long firstRound = 0;
+        if (shard != null) {
+            firstRound = shard.firstRound(numberToGenerate);
+            log.info(
+                "Shard {} generates rounds {} to {} of {}.",
+                shard,
+                firstRound,
+                firstRound + shard.numberOfRounds(numberToGenerate) - 1,
+                numberToGenerate);
+            numberToGenerate = shard.numberOfRounds(numberToGenerate);
         }
-        log.info("Start generating {} data.", numberToGenerate);
+        log.info("Start generating {} data with {} thread(s).", numberToGenerate, numberOfThreads);
 
         String targetType = xlbean.value("targetType");
+        GenerationPlan plan = GenerationPlan.compile(xlbean, "true".equalsIgnoreCase(setting("compileStatic")));
+        if (plan.getInstances(targetType).isEmpty()) {
+            throw new IllegalArgumentException(String.format("No instance is defined for targetType %s", targetType));
+        }
 
-        for (int i = 0; i < numberToGenerate; i++) {
-            log.info("Start {}", i);
+        int queueCapacity = intSetting("queueCapacity", 16);
+        int scriptCacheSize = intSetting("scriptCacheSize", 0);
+        String stateFileName = setting("incrementalState");
+        File stateFile = isEmpty(stateFileName) ? null : new File(stateFileName);
+        IncrementalState previousState = stateFile == null ? null : IncrementalState.read(stateFile);
+        if (shard != null && isEmpty(setting("seed")) && previousState == null) {
+            throw new IllegalArgumentException("shard requires a seed, which all shards of the run must share.");
+        }
+        RandomSource randomSource = createRandomSource(previousState);
+        log.info("Random seed: {}", randomSource.getSeed());
+        String outputName = setting("outputName");
+        if (isEmpty(outputName)) {
+            outputName = shard != null ? "result_" + randomSource.getSeed() : "result_" + now;
+        }
+        if (shard != null) {
+            outputName += shard.getSuffix();
+            String outputFormats = setting("outputFormats");
+            if ((isEmpty(outputFormats) || outputFormats.contains("excel"))
+                    && !"streaming".equalsIgnoreCase(setting("excelMode"))) {
+                log.warn("Excel shards can only be merged when written with excelMode=streaming.");
+            }
+        }
+        IncrementalState incrementalState = stateFile == null
+                ? null
+                : new IncrementalState(plan, targetType, randomSource.getSeed(), previousState);
 
-            resultList.addAll(generator.generate(targetType));
+        GenerationMetrics metrics = new GenerationMetrics();
+        ScheduledExecutorService metricsReporter = startMetricsReporter(metrics, intSetting("metricsInterval", 0));
+        try (RecordPipeline pipeline = new RecordPipeline(createSinks(plan, metrics, outputName), queueCapacity);
+                ParallelPersonGenerator generator = new ParallelPersonGenerator(
+                    plan,
+                    numberOfThreads,
+                    scriptCacheSize,
+                    randomSource,
+                    metrics,
+                    incrementalState)) {
+            ProgressReporter progress = new ProgressReporter(
+                intSetting("progressEveryRecords", 100_000),
+                intSetting("progressInterval", 10));
+            try {
+                generator.generate(targetType, firstRound, numberToGenerate, records -> {
+                    pipeline.put(records);
+                    progress.add(records.size());
+                });
+            } catch (RuntimeException | Error e) {
+                pipeline.abort();
+                throw e;
+            }
+            progress.finish();
+        } finally {
+            if (metricsReporter != null) {
+                metricsReporter.shutdownNow();
+            }
+        }
+        log.info("End generating {} data.", numberToGenerate);
 
-            log.info("End {}", i);
+        if (incrementalState != null) {
+            incrementalState.write(stateFile);
+            log.info(
+                "Incremental state saved to {}. Executed {} and reused {} generator(s).",
+                stateFile,
+                incrementalState.getExecutedCount(),
+                incrementalState.getReusedCount());
         }
 
-        log.info("Start output");
+        String outMetricsFileName = outputName + "_metrics.json";
+        metrics.writeTo(new File(outMetricsFileName));
+        log.info("Metrics saved to {}", outMetricsFileName);
+    }
 
-        writeToExcel(resultList, now);
-        writeToJson(resultList, now);
-        log.info("End output");
+    /**
+     * Merges the outputs of the shards of the run named by the {@code merge}
+     * setting (the {@code outputName} of the shards, e.g. "result_42"). See
+     * {@link ShardMerger}. {@code mergeRecordsPerFile} splits merged JSON
+     * into files of that many records. Only command line settings are used,
+     * since the workbook is not loaded.
+     */
+    private void runMerge() {
+        GenerationMetrics metrics = new GenerationMetrics();
+        String value = setting("mergeRecordsPerFile");
+        long recordsPerFile = 0;
+        if (!isEmpty(value)) {
+            try {
+                recordsPerFile = Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                System.err.println("Illegal number format for mergeRecordsPerFile field. Single file is written.");
+            }
+        }
+        List<String> merged = new ShardMerger(
+            setting("merge"),
+            recordsPerFile,
+            intSetting("excelWindowSize", 100),
+            intSetting("excelMaxRowsPerSheet", 0),
+            intSetting("excelMaxSheetsPerFile", 0),
+            metrics).merge();
+        log.info("Merged {} output(s) of {}", merged, setting("merge"));
+    }
+
+    private static boolean isEmpty(String value) {
+        return value == null || value.trim().isEmpty();
     }
 
-    private void writeToExcel(List<XlBean> resultList, String executedTimestamp) {
-        XlBean output = new XlBean();
-        output.set("persons", resultList);
-        XlBeanWriter writer = new XlBeanWriter(
-            new ExtendedBeanDefinitionLoader(
-                2,
-                xlbean
-                    .list("generators")
-                    .stream()
-                    .map(elem -> elem.bean("target").value("field"))
-                    .collect(
-                        Collectors.toList()),
-                "persons"));
-        String outExcelFileName = String.format("result_%s.xlsx", executedTimestamp);
-        try (OutputStream outFile = new FileOutputStream(outExcelFileName)) {
-            writer.write(output, null, output, outFile);
+    /**
+     * Serves generation requests on the port given by the {@code server}
+     * setting until the process is stopped. {@code serverMaxCount} limits the
+     * count of a request. See {@link GeneratorServer}.
+     */
+    private void runServer() {
+        int port = intSetting("server", 8080);
+        try {
+            GeneratorServer server = new GeneratorServer(
+                new File(excelFileName),
+                xlbean,
+                this::loadWorkbook,
+                port,
+                intSetting("numberOfThreads", 1),
+                intSetting("scriptCacheSize", 0),
+                "true".equalsIgnoreCase(setting("compileStatic")),
+                intSetting("serverMaxCount", 100000));
+            server.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(server::close));
+            Thread.currentThread().join();
         } catch (IOException e) {
             throw new RuntimeException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        log.info("Result saved to excel file: {}", outExcelFileName);
     }
 
-    private void writeToJson(List<XlBean> resultList, String executedTimestamp) {
-        String outJsonFileName = String.format("result_%s.json", executedTimestamp);
-        ObjectMapper mapper = new ObjectMapper();
-        try (Writer writer = new OutputStreamWriter(new FileOutputStream(outJsonFileName), "UTF-8");) {
-            mapper.writeValue(writer, resultList);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    /**
+     * Logs metrics every {@code intervalSeconds} seconds to the
+     * "io.github.aji3.persongenerator.metrics" logger. Returns null if
+     * {@code intervalSeconds} is not positive.
+     */
+    private ScheduledExecutorService startMetricsReporter(GenerationMetrics metrics, int intervalSeconds) {
+        if (intervalSeconds <= 0) {
+            return null;
+        }
+        Logger metricsLog = LoggerFactory.getLogger("io.github.aji3.persongenerator.metrics");
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "metrics-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(
+            () -> metricsLog.info("{}", metrics.toJson()),
+            intervalSeconds,
+            intervalSeconds,
+            TimeUnit.SECONDS);
+        return reporter;
+    }
+
+    /**
+     * Creates the random source from the {@code seed} setting. When the
+     * setting is empty, the seed of {@code previousState} is used if given,
+     * else a random seed; it is logged so that the same output can be
+     * generated again.
+     */
+    private RandomSource createRandomSource(IncrementalState previousState) {
+        String seed = setting("seed");
+        if (seed == null || seed.trim().isEmpty()) {
+            return previousState != null ? new RandomSource(previousState.getSeed()) : RandomSource.unseeded();
+        }
+        try {
+            return new RandomSource(Long.parseLong(seed.trim()));
+        } catch (NumberFormatException e) {
+            System.err.println("Illegal number format for seed field. Random seed is used.");
+            return RandomSource.unseeded();
+        }
+    }
+
+    /**
+     * Creates the excel sink. {@code excelMode} "streaming" writes rows
+     * through a sliding window (see {@link StreamingExcelRecordSink}); by
+     * default the whole result is written by {@code XlBeanWriter}.
+     */
+    private RecordSink createExcelSink(
+            RecordSchemaProvider schemaProvider,
+            GenerationMetrics metrics,
+            String outputName) {
+        String outExcelFileName = outputName + ".xlsx";
+        if ("streaming".equalsIgnoreCase(setting("excelMode"))) {
+            return new StreamingExcelRecordSink(
+                outExcelFileName,
+                schemaProvider,
+                intSetting("excelWindowSize", 100),
+                intSetting("excelMaxRowsPerSheet", 0),
+                intSetting("excelMaxSheetsPerFile", 0),
+                metrics);
+        }
+        return new ExcelRecordSink(outExcelFileName, schemaProvider, metrics);
+    }
+
+    /**
+     * Creates the JSON sink. {@code jsonFormat} selects "array" (default) or
+     * "jsonl" (one record per line), and {@code jsonCompression} "gzip"
+     * compresses the file.
+     */
+    private RecordSink createJsonSink(GenerationMetrics metrics, String outputName) throws IOException {
+        JsonRecordSink.Format format = JsonRecordSink.Format.ARRAY;
+        String jsonFormat = setting("jsonFormat");
+        if ("jsonl".equalsIgnoreCase(jsonFormat)) {
+            format = JsonRecordSink.Format.JSONL;
+        } else if (jsonFormat != null && !"array".equalsIgnoreCase(jsonFormat)) {
+            System.err.println(String.format("Unknown jsonFormat %s. Default format array is used.", jsonFormat));
+        }
+        boolean gzip = "gzip".equalsIgnoreCase(setting("jsonCompression"));
+        String outJsonFileName = String.format(
+            "%s.%s%s",
+            outputName,
+            format == JsonRecordSink.Format.JSONL ? "jsonl" : "json",
+            gzip ? ".gz" : "");
+        return new JsonRecordSink(outJsonFileName, format, gzip, metrics);
+    }
+
+    /**
+     * Creates sinks for the formats listed in the {@code outputFormats} setting
+     * (comma separated, "excel", "json" and/or "columnar"). Excel and JSON are
+     * written when the setting is empty. If a sink fails to open, the sinks
+     * already opened are closed.
+     */
+    private List<RecordSink> createSinks(GenerationPlan plan, GenerationMetrics metrics, String outputName) {
+        String outputFormats = setting("outputFormats");
+        List<String> formats = outputFormats == null || outputFormats.trim().isEmpty()
+                ? Arrays.asList("excel", "json")
+                : Arrays.stream(outputFormats.split(",")).map(String::trim).collect(Collectors.toList());
+
+        RecordSchemaProvider schemaProvider = new RecordSchemaProvider(
+            plan.getTargetFields(),
+            intSetting("schemaSampleSize", 1000),
+            2);
+        List<RecordSink> sinks = new ArrayList<>();
+        try {
+            for (String format : formats) {
+                switch (format) {
+                case "excel":
+                    sinks.add(createExcelSink(schemaProvider, metrics, outputName));
+                    break;
+                case "json":
+                    sinks.add(createJsonSink(metrics, outputName));
+                    break;
+                case "columnar":
+                    sinks.add(new ColumnarRecordSink(
+                        outputName + ".pgc",
+                        schemaProvider,
+                        intSetting("columnarRowGroupSize", 65536),
+                        metrics));
+                    break;
+                default:
+                    System.err.println(String.format("Unknown output format %s is ignored.", format));
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            closeQuietly(sinks, e);
+            throw e instanceof RuntimeException ? (RuntimeException) e : new RuntimeException(e);
+        }
+        return sinks;
+    }
+
+    /**
+     * Closes {@code sinks} which were opened before {@code cause}, adding
+     * their errors to {@code cause}.
+     */
+    private static void closeQuietly(List<RecordSink> sinks, Exception cause) {
+        for (RecordSink sink : sinks) {
+            try {
+                sink.close();
+            } catch (IOException | RuntimeException e) {
+                cause.addSuppressed(e);
+            }
         }
-        log.info("Result in JSON format saved to {}", outJsonFileName);
     }
 
 }
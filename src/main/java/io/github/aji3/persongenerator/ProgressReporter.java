@@ -0,0 +1,69 @@
+package io.github.aji3.persongenerator;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Logs the progress of a run every {@code everyRecords} records or every
+ * {@code intervalSeconds} seconds, whichever comes first, instead of a line
+ * per record.
+ *
+ * <p>
+ * Progress is checked whenever records are added, so nothing is logged while
+ * no records arrive. Not thread-safe; call it from the thread consuming the
+ * generated records.
+ */
+public class ProgressReporter {
+
+    private static Logger log = LoggerFactory.getLogger(ProgressReporter.class);
+
+    private final long everyRecords;
+    private final long intervalNanos;
+    private final long startNanos = System.nanoTime();
+
+    private long count;
+    private long lastReportedCount;
+    private long lastReportedNanos = startNanos;
+
+    /**
+     * @param everyRecords
+     *            records between reports. 0 to report by time only.
+     * @param intervalSeconds
+     *            seconds between reports. 0 to report by count only.
+     */
+    public ProgressReporter(long everyRecords, long intervalSeconds) {
+        this.everyRecords = everyRecords;
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(intervalSeconds);
+    }
+
+    public void add(long records) {
+        count += records;
+        long now = System.nanoTime();
+        if ((everyRecords > 0 && count - lastReportedCount >= everyRecords)
+                || (intervalNanos > 0 && now - lastReportedNanos >= intervalNanos)) {
+            report(now);
+        }
+    }
+
+    /**
+     * Logs the final count.
+     */
+    public void finish() {
+        report(System.nanoTime());
+    }
+
+    private void report(long now) {
+        lastReportedCount = count;
+        lastReportedNanos = now;
+        if (log.isInfoEnabled()) {
+            double seconds = Math.max((now - startNanos) / 1e9, 1e-9);
+            log.info(
+                "Generated {} records in {} s ({} records/s)",
+                count,
+                Math.round(seconds),
+                Math.round(count / seconds));
+        }
+    }
+}
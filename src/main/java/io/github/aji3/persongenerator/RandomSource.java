@@ -0,0 +1,72 @@
+package io.github.aji3.persongenerator;
+
+import java.util.SplittableRandom;
+
+/**
+ * Source of the random numbers used by generator scripts.
+ *
+ * <p>
+ * Every generation round gets its own {@link SplittableRandom} derived from
+ * the seed and the index of the round. A round therefore produces the same
+ * values for the same seed no matter which thread generates it or how many
+ * rounds were generated before it, and no random state is shared between
+ * threads.
+ */
+public class RandomSource {
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private final long seed;
+
+    public RandomSource(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * Creates a source with a seed chosen at random. Use {@link #getSeed()} to
+     * reproduce the same values later.
+     */
+    public static RandomSource unseeded() {
+        return new RandomSource(new SplittableRandom().nextLong());
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * Returns a new random for the round at {@code index}.
+     */
+    public SplittableRandom forRound(long index) {
+        return new SplittableRandom(mix64(seed + GOLDEN_GAMMA * (index + 1)));
+    }
+
+    /**
+     * Returns a new random for the condition or step {@code id} (e.g.
+     * "person.main.email") in the round at {@code round}.
+     */
+    public SplittableRandom forStep(long round, String id) {
+        return new SplittableRandom(mix64(mix64(seed + GOLDEN_GAMMA * (round + 1)) + GOLDEN_GAMMA * id.hashCode()));
+    }
+
+    /**
+     * Returns a new random for the batch at {@code index} of the step
+     * {@code stepId}. Batches of different steps get unrelated values, which
+     * relies on {@link GenerationPlan.GeneratorStep#getId()} being unique in
+     * an instance, also for steps without a target field.
+     */
+    public SplittableRandom forBatch(String stepId, long index) {
+        return new SplittableRandom(mix64(mix64(seed - GOLDEN_GAMMA * (index + 1)) + stepId.hashCode()));
+    }
+
+    /**
+     * Finalizer of MurmurHash3 (variant 13 by David Stafford), as used by
+     * {@link SplittableRandom}, so that neighbouring rounds get unrelated
+     * seeds.
+     */
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
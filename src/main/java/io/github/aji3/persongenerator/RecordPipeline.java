@@ -0,0 +1,154 @@
+package io.github.aji3.persongenerator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xlbean.XlBean;
+
+/**
+ * Hands generated records over to {@link RecordSink}s on a dedicated writer
+ * thread.
+ *
+ * <p>
+ * Records are passed in batches (typically the result of one or more
+ * generation rounds) through a bounded queue. When the writer falls behind,
+ * {@link #put(List)} blocks, so the number of records held in memory is
+ * bounded by the queue capacity regardless of how many records are generated.
+ *
+ * <p>
+ * If generation fails, {@link #abort()} discards the partial outputs instead
+ * of finalizing them, so a truncated output never looks complete.
+ */
+public class RecordPipeline implements AutoCloseable {
+
+    private static Logger log = LoggerFactory.getLogger(RecordPipeline.class);
+
+    /**
+     * Marks the end of input for the writer thread.
+     */
+    private static final List<XlBean> END = new ArrayList<>(0);
+
+    private final List<RecordSink> sinks;
+    private final BlockingQueue<List<XlBean>> queue;
+    private final Thread writer;
+    private volatile Throwable failure;
+    private volatile boolean aborted;
+    private boolean closed;
+
+    public RecordPipeline(List<RecordSink> sinks, int queueCapacity) {
+        this.sinks = sinks;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        this.writer = new Thread(this::drain, "record-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues records for writing. Blocks while the queue is full.
+     */
+    public void put(List<XlBean> records) {
+        checkFailure();
+        try {
+            while (!queue.offer(records, 1, TimeUnit.SECONDS)) {
+                checkFailure();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void drain() {
+        try {
+            List<XlBean> records;
+            while ((records = queue.take()) != END && !aborted) {
+                for (XlBean record : records) {
+                    for (RecordSink sink : sinks) {
+                        sink.write(record);
+                    }
+                }
+            }
+        } catch (Throwable e) {
+            log.error("Failed to write records", e);
+            failure = e;
+            queue.clear();
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new RuntimeException("Record writer has failed", failure);
+        }
+    }
+
+    /**
+     * Waits until all queued records are written, then closes all sinks. If
+     * writing failed, the sinks are aborted instead. Does nothing after
+     * {@link #abort()}.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        try {
+            if (failure == null) {
+                queue.put(END);
+            }
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abort();
+            throw new RuntimeException(e);
+        }
+        if (failure != null) {
+            abort();
+            checkFailure();
+        }
+        closed = true;
+        IOException closeFailure = null;
+        for (RecordSink sink : sinks) {
+            try {
+                sink.close();
+            } catch (IOException e) {
+                closeFailure = e;
+            }
+        }
+        if (closeFailure != null) {
+            throw new RuntimeException(closeFailure);
+        }
+    }
+
+    /**
+     * Stops writing, drops queued records and aborts all sinks, which
+     * deletes their partial outputs (see {@link RecordSink#abort()}).
+     */
+    public void abort() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        aborted = true;
+        queue.clear();
+        queue.offer(END);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (RecordSink sink : sinks) {
+            try {
+                sink.abort();
+            } catch (IOException | RuntimeException e) {
+                log.warn("Failed to discard the output of {}", sink, e);
+            }
+        }
+        log.warn("Output aborted. Partial outputs are deleted.");
+    }
+}
@@ -0,0 +1,99 @@
+package io.github.aji3.persongenerator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.xlbean.XlBean;
+import org.xlbean.util.FieldAccessHelper;
+import org.xlbean.util.XlBeanFactory;
+
+/**
+ * Ordered output columns of generated records, e.g. "lastName",
+ * "address.town", "phones[0].number".
+ *
+ * <p>
+ * A schema is derived once from the target fields of the generator sheet and
+ * a bounded sample of records, instead of from every record written. Nested
+ * lists are expanded to {@code numberOfIterations} elements as
+ * {@link ExtendedBeanDefinitionLoader} does. Instances are immutable.
+ */
+public class RecordSchema {
+
+    private static final String TABLE_NAME = "persons";
+
+    private final List<String> columnNames;
+    private final List<FieldPath> columns;
+    private final int numberOfIterations;
+
+    private RecordSchema(List<String> columnNames, int numberOfIterations) {
+        this.numberOfIterations = numberOfIterations;
+        this.columnNames = Collections.unmodifiableList(columnNames);
+        List<FieldPath> paths = new ArrayList<>();
+        for (String columnName : columnNames) {
+            paths.add(FieldPath.parse(columnName));
+        }
+        this.columns = Collections.unmodifiableList(paths);
+    }
+
+    /**
+     * Derives the schema from {@code sample}.
+     *
+     * <p>
+     * Target fields which no sampled record has a value for are still output
+     * as columns, so that a small sample does not drop columns.
+     *
+     * @param targetFields
+     *            target fields of the generator sheet in sheet order, which
+     *            also define the column order
+     * @param sample
+     *            records the nested columns are derived from
+     * @param numberOfIterations
+     *            number of elements output for nested lists
+     */
+    public static RecordSchema derive(List<String> targetFields, List<XlBean> sample, int numberOfIterations) {
+        List<XlBean> definitionRecords = new ArrayList<>(sample);
+        definitionRecords.add(placeholderRecord(targetFields, sample));
+
+        XlBean definitionSource = new XlBean();
+        definitionSource.set(TABLE_NAME, definitionRecords);
+        return new RecordSchema(
+            new ExtendedBeanDefinitionLoader(numberOfIterations, targetFields, TABLE_NAME)
+                .loadColumnNames(definitionSource),
+            numberOfIterations);
+    }
+
+    /**
+     * Returns a record which has an empty value for every target field that
+     * is missing in all of {@code sample}. Fields in lists are left to the
+     * sample.
+     */
+    private static XlBean placeholderRecord(List<String> targetFields, List<XlBean> sample) {
+        XlBean placeholder = XlBeanFactory.getInstance().createBean();
+        for (String targetField : targetFields) {
+            if (targetField.indexOf('[') >= 0) {
+                continue;
+            }
+            FieldPath path = FieldPath.parse(targetField);
+            if (sample.stream().allMatch(record -> path.get(record) == null)) {
+                FieldAccessHelper.setValue(targetField, "", placeholder);
+            }
+        }
+        return placeholder;
+    }
+
+    public List<String> getColumnNames() {
+        return columnNames;
+    }
+
+    public List<FieldPath> getColumns() {
+        return columns;
+    }
+
+    /**
+     * Returns the number of elements output for nested lists.
+     */
+    public int getNumberOfIterations() {
+        return numberOfIterations;
+    }
+}
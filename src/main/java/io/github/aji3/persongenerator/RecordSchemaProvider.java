@@ -0,0 +1,58 @@
+package io.github.aji3.persongenerator;
+
+import java.util.List;
+
+import org.xlbean.XlBean;
+
+/**
+ * Derives the {@link RecordSchema} of a run once and hands the same schema to
+ * every sink and output file that asks for it.
+ */
+public class RecordSchemaProvider {
+
+    private final List<String> targetFields;
+    private final int sampleSize;
+    private final int numberOfIterations;
+    private volatile RecordSchema schema;
+
+    /**
+     * @param targetFields
+     *            target fields of the generator sheet in sheet order
+     * @param sampleSize
+     *            number of records the schema is derived from
+     * @param numberOfIterations
+     *            number of elements output for nested lists
+     */
+    public RecordSchemaProvider(List<String> targetFields, int sampleSize, int numberOfIterations) {
+        this.targetFields = targetFields;
+        this.sampleSize = Math.max(1, sampleSize);
+        this.numberOfIterations = numberOfIterations;
+    }
+
+    /**
+     * Returns the number of records a sink should collect before calling
+     * {@link #get(List)}.
+     */
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     * Returns the schema of the run. It is derived from {@code sample} on the
+     * first call; later calls return the same schema.
+     */
+    public RecordSchema get(List<XlBean> sample) {
+        RecordSchema ret = schema;
+        if (ret == null) {
+            synchronized (this) {
+                ret = schema;
+                if (ret == null) {
+                    List<XlBean> bounded = sample.size() > sampleSize ? sample.subList(0, sampleSize) : sample;
+                    ret = RecordSchema.derive(targetFields, bounded, numberOfIterations);
+                    schema = ret;
+                }
+            }
+        }
+        return ret;
+    }
+}
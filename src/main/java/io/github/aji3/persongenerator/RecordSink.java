@@ -0,0 +1,32 @@
+package io.github.aji3.persongenerator;
+
+import java.io.IOException;
+
+import org.xlbean.XlBean;
+
+/**
+ * Destination of generated records.
+ *
+ * <p>
+ * Records are passed one by one in generation order, as soon as they are
+ * generated. A sink is used from a single writer thread, so implementations
+ * do not need to be thread-safe.
+ */
+public interface RecordSink extends AutoCloseable {
+
+    void write(XlBean record) throws IOException;
+
+    /**
+     * Flushes remaining data and releases the underlying resources. No record
+     * is written after this method is called.
+     */
+    @Override
+    void close() throws IOException;
+
+    /**
+     * Releases the underlying resources without finalizing the output, and
+     * deletes the files written so far, e.g. when generation failed. No
+     * record is written after this method is called.
+     */
+    void abort() throws IOException;
+}
@@ -0,0 +1,100 @@
+package io.github.aji3.persongenerator;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+import groovy.lang.Script;
+
+/**
+ * Cache of compiled scripts keyed by their source.
+ *
+ * <p>
+ * When {@code maxSize} is positive, the least recently used script is evicted
+ * once the cache holds more than {@code maxSize} scripts. Otherwise the cache
+ * is unbounded.
+ *
+ * <p>
+ * This class is not thread-safe. Each {@link PersonGenerator} owns its own
+ * cache since compiled scripts are bound to the generator's binding. Only the
+ * size and the statistics may be read from other threads, e.g. by a metrics
+ * reporter.
+ */
+public class ScriptCache {
+
+    private final int maxSize;
+    private final Map<String, Script> scripts;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private volatile int size;
+
+    public ScriptCache() {
+        this(0);
+    }
+
+    @SuppressWarnings("serial")
+    public ScriptCache(int maxSize) {
+        this.maxSize = maxSize;
+        this.scripts = new LinkedHashMap<String, Script>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Script> eldest) {
+                if (ScriptCache.this.maxSize > 0 && size() > ScriptCache.this.maxSize) {
+                    evictionCount.increment();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached script for {@code source}, compiling it with
+     * {@code compiler} if it is not cached yet.
+     */
+    public Script get(String source, Function<String, Script> compiler) {
+        Script script = scripts.get(source);
+        if (script != null) {
+            hitCount.increment();
+            return script;
+        }
+        missCount.increment();
+        script = compiler.apply(source);
+        scripts.put(source, script);
+        size = scripts.size();
+        return script;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+            "size=%d, maxSize=%d, hits=%d, misses=%d, evictions=%d",
+            size(),
+            maxSize,
+            getHitCount(),
+            getMissCount(),
+            getEvictionCount());
+    }
+}
@@ -0,0 +1,78 @@
+package io.github.aji3.persongenerator;
+
+/**
+ * One of {@code count} slices of a run, given as "index/count" with index
+ * from 0.
+ *
+ * <p>
+ * Shard {@code index} generates the rounds from {@code total * index / count}
+ * (inclusive) to {@code total * (index + 1) / count} (exclusive). Rounds are
+ * seeded by their index, so with the same seed the shards together generate
+ * the same records as a single run, and their outputs can be merged with
+ * {@link ShardMerger}.
+ */
+public final class Shard {
+
+    private final int index;
+    private final int count;
+
+    public Shard(int index, int count) {
+        if (count <= 0 || index < 0 || index >= count) {
+            throw new IllegalArgumentException(
+                String.format("Illegal shard %d/%d. Index must be from 0 to count - 1.", index, count));
+        }
+        this.index = index;
+        this.count = count;
+    }
+
+    /**
+     * Parses "index/count", e.g. "0/4".
+     */
+    public static Shard parse(String value) {
+        int separator = value.indexOf('/');
+        if (separator < 0) {
+            throw new IllegalArgumentException(String.format("Illegal shard %s. Shard must be index/count.", value));
+        }
+        try {
+            return new Shard(
+                Integer.parseInt(value.substring(0, separator).trim()),
+                Integer.parseInt(value.substring(separator + 1).trim()));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(String.format("Illegal shard %s. Shard must be index/count.", value));
+        }
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Returns the first round of this shard out of {@code total} rounds.
+     */
+    public long firstRound(long total) {
+        return total * index / count;
+    }
+
+    /**
+     * Returns the number of rounds of this shard out of {@code total} rounds.
+     */
+    public int numberOfRounds(long total) {
+        return (int) (total * (index + 1) / count - firstRound(total));
+    }
+
+    /**
+     * Returns the suffix added to output names, e.g. "-shard-0-of-4".
+     */
+    public String getSuffix() {
+        return String.format("-shard-%d-of-%d", index, count);
+    }
+
+    @Override
+    public String toString() {
+        return index + "/" + count;
+    }
+}
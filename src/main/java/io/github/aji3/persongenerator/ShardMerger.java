@@ -0,0 +1,443 @@
+package io.github.aji3.persongenerator;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.poi.openxml4j.exceptions.OpenXML4JException;
+import org.apache.poi.openxml4j.opc.OPCPackage;
+import org.apache.poi.openxml4j.opc.PackageAccess;
+import org.apache.poi.xssf.eventusermodel.XSSFReader;
+import org.apache.poi.xssf.model.SharedStringsTable;
+import org.apache.poi.xssf.usermodel.XSSFRichTextString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Merges the outputs of the shards of a run (see {@link Shard}) in shard
+ * order.
+ *
+ * <p>
+ * Shard outputs are found next to {@code outputName} by their names, e.g.
+ * "result-shard-0-of-4.jsonl" for the output name "result". Each format
+ * found is merged into "result.jsonl", or into files of
+ * {@code recordsPerFile} records each ("result-part-1.jsonl", ...). JSON
+ * records are copied token by token without binding them. Excel shards must
+ * have been written with {@link StreamingExcelRecordSink} (a header row
+ * followed by one row per record on every sheet); their sheets are read as a
+ * stream and written to a new streaming workbook whose columns are the union
+ * of the shard columns. All shards of a format must be present.
+ */
+public class ShardMerger {
+
+    private static Logger log = LoggerFactory.getLogger(ShardMerger.class);
+
+    private static final Pattern SHARD_FILE = Pattern
+        .compile("-shard-(\\d+)-of-(\\d+)(?:_(\\d+))?\\.(json|jsonl|json\\.gz|jsonl\\.gz|xlsx)");
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    private final String outputName;
+    private final long recordsPerFile;
+    private final int excelWindowSize;
+    private final int excelMaxRowsPerSheet;
+    private final int excelMaxSheetsPerFile;
+    private final GenerationMetrics metrics;
+
+    /**
+     * @param outputName
+     *            output name of the run, without shard suffix and extension
+     * @param recordsPerFile
+     *            records per merged JSON file. 0 for a single file.
+     * @param excelWindowSize
+     *            number of rows kept in memory per merged sheet
+     * @param excelMaxRowsPerSheet
+     *            records per merged sheet. 0 for the excel maximum.
+     * @param excelMaxSheetsPerFile
+     *            sheets per merged excel file. 0 for unlimited.
+     * @param metrics
+     *            metrics to report written bytes to
+     */
+    public ShardMerger(
+            String outputName,
+            long recordsPerFile,
+            int excelWindowSize,
+            int excelMaxRowsPerSheet,
+            int excelMaxSheetsPerFile,
+            GenerationMetrics metrics) {
+        this.outputName = outputName;
+        this.recordsPerFile = recordsPerFile;
+        this.excelWindowSize = excelWindowSize;
+        this.excelMaxRowsPerSheet = excelMaxRowsPerSheet;
+        this.excelMaxSheetsPerFile = excelMaxSheetsPerFile;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Merges every format found and returns the extensions merged.
+     */
+    public List<String> merge() {
+        Map<String, List<ShardFile>> shardFiles = findShardFiles();
+        if (shardFiles.isEmpty()) {
+            throw new IllegalArgumentException(String.format("No shard output found for %s", outputName));
+        }
+        try {
+            for (Map.Entry<String, List<ShardFile>> entry : shardFiles.entrySet()) {
+                String extension = entry.getKey();
+                List<ShardFile> files = entry.getValue();
+                checkComplete(extension, files);
+                if ("xlsx".equals(extension)) {
+                    mergeExcel(files);
+                } else {
+                    mergeJson(extension, files);
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return new ArrayList<>(shardFiles.keySet());
+    }
+
+    private Map<String, List<ShardFile>> findShardFiles() {
+        File output = new File(outputName);
+        File directory = output.getAbsoluteFile().getParentFile();
+        String prefix = output.getName();
+        Map<String, List<ShardFile>> ret = new TreeMap<>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return ret;
+        }
+        for (File file : files) {
+            if (!file.getName().startsWith(prefix)) {
+                continue;
+            }
+            Matcher matcher = SHARD_FILE.matcher(file.getName().substring(prefix.length()));
+            if (!matcher.matches() || (matcher.group(3) != null && !"xlsx".equals(matcher.group(4)))) {
+                continue;
+            }
+            ret.computeIfAbsent(matcher.group(4), key -> new ArrayList<>()).add(
+                new ShardFile(
+                    file,
+                    Integer.parseInt(matcher.group(1)),
+                    Integer.parseInt(matcher.group(2)),
+                    matcher.group(3) == null ? 1 : Integer.parseInt(matcher.group(3))));
+        }
+        ret.values().forEach(list -> list.sort(
+            Comparator.<ShardFile> comparingInt(shardFile -> shardFile.index).thenComparingInt(
+                shardFile -> shardFile.part)));
+        return ret;
+    }
+
+    private void checkComplete(String extension, List<ShardFile> files) {
+        int count = files.get(0).count;
+        boolean[] found = new boolean[count];
+        for (ShardFile file : files) {
+            if (file.count != count || file.index >= count) {
+                throw new IllegalStateException(
+                    String.format("%s does not belong to a run of %d shards", file.file, count));
+            }
+            found[file.index] = true;
+        }
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            if (!found[i]) {
+                missing.add(i);
+            }
+        }
+        if (!missing.isEmpty()) {
+            throw new IllegalStateException(
+                String.format("Shard(s) %s of %d are missing for %s.%s", missing, count, outputName, extension));
+        }
+    }
+
+    private void mergeJson(String extension, List<ShardFile> files) throws IOException {
+        JsonRecordSink.Format format = extension.startsWith("jsonl")
+                ? JsonRecordSink.Format.JSONL
+                : JsonRecordSink.Format.ARRAY;
+        boolean gzip = extension.endsWith(".gz");
+        JsonRecordSink sink = null;
+        int part = 0;
+        long recordsInPart = 0;
+        long records = 0;
+        try {
+            for (ShardFile file : files) {
+                try (InputStream in = openJson(file.file, gzip);
+                        JsonParser parser = jsonFactory.createParser(in)) {
+                    JsonToken token = parser.nextToken();
+                    if (token == JsonToken.START_ARRAY) {
+                        token = parser.nextToken();
+                    }
+                    while (token != null && token != JsonToken.END_ARRAY) {
+                        if (sink == null || (recordsPerFile > 0 && recordsInPart >= recordsPerFile)) {
+                            if (sink != null) {
+                                sink.close();
+                            }
+                            sink = new JsonRecordSink(mergedFileName(++part, extension), format, gzip, metrics);
+                            recordsInPart = 0;
+                        }
+                        sink.copy(parser);
+                        recordsInPart++;
+                        records++;
+                        token = parser.nextToken();
+                    }
+                }
+            }
+            if (sink == null) {
+                sink = new JsonRecordSink(mergedFileName(1, extension), format, gzip, metrics);
+            }
+        } finally {
+            if (sink != null) {
+                sink.close();
+            }
+        }
+        log.info("Merged {} records of {} shard(s) into {} {} file(s)", records, files.size(), part, extension);
+    }
+
+    private static InputStream openJson(File file, boolean gzip) throws IOException {
+        InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024);
+        return gzip ? new GZIPInputStream(in, 64 * 1024) : in;
+    }
+
+    private String mergedFileName(int part, String extension) {
+        return recordsPerFile > 0
+                ? String.format("%s-part-%d.%s", outputName, part, extension)
+                : String.format("%s.%s", outputName, extension);
+    }
+
+    private void mergeExcel(List<ShardFile> files) throws IOException {
+        Map<String, Integer> columns = new LinkedHashMap<>();
+        for (ShardFile file : files) {
+            try (ExcelShardReader reader = new ExcelShardReader(file.file)) {
+                while (reader.nextSheet()) {
+                    List<Object> header = reader.nextRow();
+                    if (header != null) {
+                        for (Object columnName : header) {
+                            if (columnName != null) {
+                                columns.putIfAbsent(columnName.toString(), columns.size());
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        long records = 0;
+        String mergedFileName = outputName + ".xlsx";
+        try (StreamingExcelRecordSink sink = new StreamingExcelRecordSink(
+            mergedFileName,
+            new ArrayList<>(columns.keySet()),
+            excelWindowSize,
+            excelMaxRowsPerSheet,
+            excelMaxSheetsPerFile,
+            metrics)) {
+            for (ShardFile file : files) {
+                try (ExcelShardReader reader = new ExcelShardReader(file.file)) {
+                    while (reader.nextSheet()) {
+                        List<Object> header = reader.nextRow();
+                        if (header == null) {
+                            continue;
+                        }
+                        int[] target = new int[header.size()];
+                        for (int i = 0; i < header.size(); i++) {
+                            target[i] = header.get(i) == null ? -1 : columns.get(header.get(i).toString());
+                        }
+                        List<Object> row;
+                        while ((row = reader.nextRow()) != null) {
+                            Object[] values = new Object[columns.size()];
+                            for (int i = 0; i < row.size() && i < target.length; i++) {
+                                if (target[i] >= 0) {
+                                    values[target[i]] = row.get(i);
+                                }
+                            }
+                            sink.writeValues(values);
+                            records++;
+                        }
+                    }
+                }
+            }
+        }
+        log.info("Merged {} records of {} excel file(s) into {}", records, files.size(), mergedFileName);
+    }
+
+    private static class ShardFile {
+        private final File file;
+        private final int index;
+        private final int count;
+        private final int part;
+
+        ShardFile(File file, int index, int count, int part) {
+            this.file = file;
+            this.index = index;
+            this.count = count;
+            this.part = part;
+        }
+    }
+
+    /**
+     * Reads the rows of the sheets of an excel file one at a time, without
+     * loading the sheets into memory.
+     */
+    private static class ExcelShardReader implements AutoCloseable {
+
+        private static final XMLInputFactory xmlInputFactory = createXmlInputFactory();
+
+        private final OPCPackage excelPackage;
+        private final SharedStringsTable sharedStrings;
+        private final Iterator<InputStream> sheets;
+
+        private InputStream sheetStream;
+        private XMLStreamReader sheet;
+
+        ExcelShardReader(File file) throws IOException {
+            try {
+                this.excelPackage = OPCPackage.open(file, PackageAccess.READ);
+                XSSFReader reader = new XSSFReader(excelPackage);
+                this.sharedStrings = reader.getSharedStringsTable();
+                this.sheets = reader.getSheetsData();
+            } catch (OpenXML4JException e) {
+                throw new IOException(String.format("Cannot read excel file %s", file), e);
+            }
+        }
+
+        private static XMLInputFactory createXmlInputFactory() {
+            XMLInputFactory factory = XMLInputFactory.newInstance();
+            factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+            return factory;
+        }
+
+        /**
+         * Moves to the next sheet. Returns false if there are no more sheets.
+         */
+        boolean nextSheet() throws IOException {
+            closeSheet();
+            if (!sheets.hasNext()) {
+                return false;
+            }
+            sheetStream = sheets.next();
+            try {
+                sheet = xmlInputFactory.createXMLStreamReader(sheetStream);
+            } catch (XMLStreamException e) {
+                throw new IOException(e);
+            }
+            return true;
+        }
+
+        /**
+         * Returns the values of the next row of the current sheet by column
+         * index, or null at the end of the sheet. Numbers are returned as
+         * {@link Double}, booleans as {@link Boolean} and other values as
+         * {@link String}.
+         */
+        List<Object> nextRow() throws IOException {
+            try {
+                List<Object> row = null;
+                String type = null;
+                int column = 0;
+                StringBuilder text = new StringBuilder();
+                while (sheet.hasNext()) {
+                    int event = sheet.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        switch (sheet.getLocalName()) {
+                        case "row":
+                            row = new ArrayList<>();
+                            column = 0;
+                            break;
+                        case "c":
+                            type = sheet.getAttributeValue(null, "t");
+                            String reference = sheet.getAttributeValue(null, "r");
+                            if (reference != null) {
+                                column = columnIndex(reference);
+                            }
+                            text.setLength(0);
+                            break;
+                        case "v":
+                        case "t":
+                            text.append(sheet.getElementText());
+                            break;
+                        default:
+                            break;
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        if ("c".equals(sheet.getLocalName())) {
+                            while (row.size() < column) {
+                                row.add(null);
+                            }
+                            row.add(cellValue(type, text.toString()));
+                            column++;
+                        } else if ("row".equals(sheet.getLocalName())) {
+                            return row;
+                        }
+                    }
+                }
+                return null;
+            } catch (XMLStreamException e) {
+                throw new IOException(e);
+            }
+        }
+
+        private Object cellValue(String type, String text) {
+            if (type == null || "n".equals(type)) {
+                return text.isEmpty() ? null : Double.valueOf(text);
+            }
+            switch (type) {
+            case "s":
+                return new XSSFRichTextString(sharedStrings.getEntryAt(Integer.parseInt(text))).getString();
+            case "b":
+                return "1".equals(text);
+            default:
+                return text;
+            }
+        }
+
+        private static int columnIndex(String reference) {
+            int ret = 0;
+            for (int i = 0; i < reference.length() && Character.isLetter(reference.charAt(i)); i++) {
+                ret = ret * 26 + (reference.charAt(i) - 'A' + 1);
+            }
+            return ret - 1;
+        }
+
+        private void closeSheet() throws IOException {
+            if (sheet != null) {
+                try {
+                    sheet.close();
+                } catch (XMLStreamException e) {
+                    throw new IOException(e);
+                }
+                sheet = null;
+            }
+            if (sheetStream != null) {
+                sheetStream.close();
+                sheetStream = null;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            closeSheet();
+            excelPackage.revert();
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package io.github.aji3.persongenerator;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.usermodel.Sheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xlbean.XlBean;
+
+/**
+ * Writes records to excel files with POI's streaming workbook, keeping only a
+ * bounded window of rows in memory.
+ *
+ * <p>
+ * Columns are taken from the {@link RecordSchema} of the run, which is derived
+ * from the first records; those records are held until the schema is known. Each
+ * sheet has a header row followed by one row per record. When a sheet reaches
+ * {@code maxRowsPerSheet} records, writing continues on a new sheet, and when
+ * a file reaches {@code maxSheetsPerFile} sheets, on a new file (file names
+ * get a "_2", "_3", ... suffix).
+ */
+public class StreamingExcelRecordSink implements RecordSink {
+
+    private static Logger log = LoggerFactory.getLogger(StreamingExcelRecordSink.class);
+
+    /**
+     * Maximum number of rows of an excel sheet, excluding the header row.
+     */
+    public static final int MAX_ROWS_PER_SHEET = 1_048_575;
+
+    private static final String TABLE_NAME = "persons";
+
+    private final String fileName;
+    private final RecordSchemaProvider schemaProvider;
+    private final int windowSize;
+    private final int maxRowsPerSheet;
+    private final int maxSheetsPerFile;
+    private final GenerationMetrics metrics;
+
+    private List<XlBean> sample = new ArrayList<>();
+    private List<String> columnNames;
+    private List<FieldPath> columns;
+
+    private SXSSFWorkbook workbook;
+    private Sheet sheet;
+    private int fileCount;
+    private int rowCount;
+
+    /**
+     * @param fileName
+     *            name of the first file. Following files get a suffix before
+     *            the extension.
+     * @param schemaProvider
+     *            provides the columns
+     * @param windowSize
+     *            number of rows kept in memory per sheet
+     * @param maxRowsPerSheet
+     *            number of records per sheet, at most
+     *            {@link #MAX_ROWS_PER_SHEET}
+     * @param maxSheetsPerFile
+     *            number of sheets per file. 0 for unlimited.
+     */
+    public StreamingExcelRecordSink(
+            String fileName,
+            RecordSchemaProvider schemaProvider,
+            int windowSize,
+            int maxRowsPerSheet,
+            int maxSheetsPerFile,
+            GenerationMetrics metrics) {
+        this.fileName = fileName;
+        this.schemaProvider = schemaProvider;
+        this.windowSize = windowSize;
+        this.maxRowsPerSheet = maxRowsPerSheet <= 0
+                ? MAX_ROWS_PER_SHEET
+                : Math.min(maxRowsPerSheet, MAX_ROWS_PER_SHEET);
+        this.maxSheetsPerFile = maxSheetsPerFile;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Writes the given columns instead of deriving them from the records,
+     * e.g. to merge excel files with {@link #writeValues(Object[])}.
+     */
+    public StreamingExcelRecordSink(
+            String fileName,
+            List<String> columnNames,
+            int windowSize,
+            int maxRowsPerSheet,
+            int maxSheetsPerFile,
+            GenerationMetrics metrics) {
+        this(fileName, (RecordSchemaProvider) null, windowSize, maxRowsPerSheet, maxSheetsPerFile, metrics);
+        this.sample = null;
+        this.columnNames = columnNames;
+        this.columns = new ArrayList<>();
+        for (String columnName : columnNames) {
+            columns.add(FieldPath.parse(columnName));
+        }
+    }
+
+    @Override
+    public void write(XlBean record) throws IOException {
+        if (columns == null) {
+            sample.add(record);
+            if (sample.size() >= schemaProvider.getSampleSize()) {
+                flushSample();
+            }
+            return;
+        }
+        writeRow(record);
+    }
+
+    private void flushSample() throws IOException {
+        RecordSchema schema = schemaProvider.get(sample);
+        columnNames = schema.getColumnNames();
+        columns = schema.getColumns();
+        for (XlBean record : sample) {
+            writeRow(record);
+        }
+        sample = null;
+    }
+
+    private void writeRow(XlBean record) throws IOException {
+        Object[] values = new Object[columns.size()];
+        for (int i = 0; i < columns.size(); i++) {
+            values[i] = columns.get(i).get(record);
+        }
+        writeValues(values);
+    }
+
+    /**
+     * Writes a row of values in column order. Only for sinks created with
+     * fixed columns, or after the schema is known.
+     */
+    public void writeValues(Object[] values) throws IOException {
+        if (sheet == null || rowCount >= maxRowsPerSheet) {
+            nextSheet();
+        }
+        Row row = sheet.createRow(++rowCount);
+        for (int i = 0; i < values.length; i++) {
+            Object value = values[i];
+            if (value == null) {
+                continue;
+            }
+            Cell cell = row.createCell(i);
+            if (value instanceof Number) {
+                cell.setCellValue(((Number) value).doubleValue());
+            } else if (value instanceof Boolean) {
+                cell.setCellValue((Boolean) value);
+            } else {
+                cell.setCellValue(value.toString());
+            }
+        }
+    }
+
+    private void nextSheet() throws IOException {
+        if (workbook == null || (maxSheetsPerFile > 0 && workbook.getNumberOfSheets() >= maxSheetsPerFile)) {
+            closeWorkbook();
+            workbook = new SXSSFWorkbook(windowSize);
+            workbook.setCompressTempFiles(true);
+            fileCount++;
+        }
+        int sheetNumber = workbook.getNumberOfSheets() + 1;
+        sheet = workbook.createSheet(sheetNumber == 1 ? TABLE_NAME : TABLE_NAME + "_" + sheetNumber);
+        Row header = sheet.createRow(0);
+        for (int i = 0; i < columnNames.size(); i++) {
+            header.createCell(i).setCellValue(columnNames.get(i));
+        }
+        rowCount = 0;
+    }
+
+    private String currentFileName() {
+        return fileName(fileCount);
+    }
+
+    private String fileName(int fileCount) {
+        if (fileCount <= 1) {
+            return fileName;
+        }
+        int dot = fileName.lastIndexOf('.');
+        return dot < 0
+                ? fileName + "_" + fileCount
+                : fileName.substring(0, dot) + "_" + fileCount + fileName.substring(dot);
+    }
+
+    private void closeWorkbook() throws IOException {
+        if (workbook == null) {
+            return;
+        }
+        String outExcelFileName = currentFileName();
+        try (OutputStream outFile = metrics.countBytes(outExcelFileName, new FileOutputStream(outExcelFileName))) {
+            workbook.write(outFile);
+        } finally {
+            workbook.dispose();
+            workbook.close();
+        }
+        log.info("Result saved to excel file: {}", outExcelFileName);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (columns == null && sample != null && !sample.isEmpty()) {
+            flushSample();
+        }
+        closeWorkbook();
+    }
+
+    /**
+     * Discards the current workbook and deletes the files completed so far.
+     */
+    @Override
+    public void abort() throws IOException {
+        try {
+            if (workbook != null) {
+                workbook.dispose();
+                workbook.close();
+            }
+        } finally {
+            for (int i = 1; i < fileCount; i++) {
+                Files.deleteIfExists(Paths.get(fileName(i)));
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package io.github.aji3.persongenerator;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.ibm.icu.text.Transliterator;
+
+/**
+ * Thread-safe cache of ICU transliterators and of their results.
+ *
+ * <p>
+ * Creating a {@link Transliterator} compiles its rules, which is far more
+ * expensive than transliterating a short string. Transliterators are created
+ * once per thread and transform ID, since a compiled instance is not meant to
+ * be used by several threads at once. Results are memoized per transform ID
+ * and shared by all threads because generated data repeats the same names
+ * over and over; the memo of an ID is dropped once it grows beyond
+ * {@link #MAX_MEMOIZED_RESULTS} entries.
+ */
+public class TransliteratorCache {
+
+    private static final int MAX_MEMOIZED_RESULTS = 100_000;
+
+    private static final ThreadLocal<Map<String, Transliterator>> transliterators = ThreadLocal
+        .withInitial(HashMap::new);
+
+    private static final ConcurrentMap<String, ConcurrentMap<String, String>> results = new ConcurrentHashMap<>();
+
+    private TransliteratorCache() {
+    }
+
+    /**
+     * Transliterates {@code text} with the transform {@code id}, e.g.
+     * "Any-Latin".
+     */
+    public static String transliterate(String id, String text) {
+        ConcurrentMap<String, String> memo = results.computeIfAbsent(id, key -> new ConcurrentHashMap<>());
+        String result = memo.get(text);
+        if (result == null) {
+            result = transliterators
+                .get()
+                .computeIfAbsent(id, Transliterator::getInstance)
+                .transliterate(text);
+            if (memo.size() >= MAX_MEMOIZED_RESULTS) {
+                memo.clear();
+            }
+            memo.put(text, result);
+        }
+        return result;
+    }
+}
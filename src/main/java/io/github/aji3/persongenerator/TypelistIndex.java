@@ -0,0 +1,112 @@
+package io.github.aji3.persongenerator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Read-only index of the "typelists" sheet, keyed by type and by type and key.
+ *
+ * <p>
+ * The index is built once per workbook and shared by all generators, so the
+ * lists and maps returned by this class are unmodifiable.
+ */
+public class TypelistIndex {
+
+    private final Map<String, List<Map<String, Object>>> rowsByType = new HashMap<>();
+    private final Map<String, Map<String, Object>> valuesByType = new HashMap<>();
+    private final Map<String, Map<String, Integer>> positionsByType = new HashMap<>();
+
+    /**
+     * @param typelists
+     *            rows of the "typelists" sheet. Each row has "type", "key" and
+     *            "value". May be null.
+     */
+    public TypelistIndex(List<? extends Map<String, Object>> typelists) {
+        Map<String, List<Map<String, Object>>> rows = new HashMap<>();
+        if (typelists != null) {
+            for (Map<String, Object> row : typelists) {
+                rows.computeIfAbsent(toKey(row.get("type")), key -> new ArrayList<>()).add(row);
+            }
+        }
+        rows.forEach((type, list) -> {
+            Map<String, Object> values = new HashMap<>();
+            Map<String, Integer> positions = new HashMap<>();
+            for (int i = 0; i < list.size(); i++) {
+                Object key = list.get(i).get("key");
+                if (key == null) {
+                    continue;
+                }
+                values.put(key.toString(), list.get(i).get("value"));
+                if (positions.containsKey(key.toString())) {
+                    // duplicated key. See indexOf.
+                    positions.put(key.toString(), -1);
+                } else {
+                    positions.put(key.toString(), i);
+                }
+            }
+            rowsByType.put(type, Collections.unmodifiableList(list));
+            valuesByType.put(type, Collections.unmodifiableMap(values));
+            positionsByType.put(type, positions);
+        });
+    }
+
+    private static String toKey(Object type) {
+        return type == null ? null : type.toString();
+    }
+
+    /**
+     * Returns rows of {@code type} in sheet order.
+     */
+    public List<Map<String, Object>> list(String type) {
+        List<Map<String, Object>> rows = rowsByType.get(type);
+        return rows == null ? Collections.emptyList() : rows;
+    }
+
+    /**
+     * Returns key to value map of {@code type}. If a key is duplicated, the
+     * last row wins.
+     */
+    public Map<String, Object> asMap(String type) {
+        Map<String, Object> values = valuesByType.get(type);
+        return values == null ? Collections.emptyMap() : values;
+    }
+
+    /**
+     * Returns the first row of {@code type} whose key is {@code key}, or null.
+     */
+    public Map<String, Object> get(String type, String key) {
+        int index = indexOf(type, key);
+        if (index >= 0) {
+            return list(type).get(index);
+        }
+        if (index == -1) {
+            return null;
+        }
+        for (Map<String, Object> row : list(type)) {
+            if (key.equals(row.get("key"))) {
+                return row;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the position of the row of {@code type} whose key is
+     * {@code key}, -1 if there is no such row, or -2 if more than one row has
+     * the key.
+     */
+    public int indexOf(String type, String key) {
+        Map<String, Integer> positions = positionsByType.get(type);
+        if (positions == null) {
+            return -1;
+        }
+        Integer position = positions.get(key);
+        if (position == null) {
+            return -1;
+        }
+        return position < 0 ? -2 : position;
+    }
+}
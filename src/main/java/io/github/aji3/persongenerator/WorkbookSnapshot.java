@@ -0,0 +1,231 @@
+package io.github.aji3.persongenerator;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xlbean.XlBean;
+import org.xlbean.XlList;
+import org.xlbean.util.XlBeanFactory;
+
+/**
+ * Binary snapshot of a loaded workbook, which lets later runs skip parsing
+ * the excel file.
+ *
+ * <p>
+ * The snapshot starts with the size, modification time and SHA-256 checksum
+ * of the workbook it was taken from. It is used if the workbook has the same
+ * size and either the same modification time or the same checksum, so a
+ * fresh checkout of an unchanged workbook still hits the snapshot. The model
+ * is stored as a tree of tagged values; every distinct string is written once
+ * and referred to by index afterwards, so repeated keys are shared when the
+ * snapshot is read. The snapshot is read through a memory-mapped buffer.
+ */
+public class WorkbookSnapshot {
+
+    private static Logger log = LoggerFactory.getLogger(WorkbookSnapshot.class);
+
+    private static final int MAGIC = 0x50475331; // "PGS1"
+
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte STRING_REF = 2;
+    private static final byte BEAN = 3;
+    private static final byte XL_LIST = 4;
+    private static final byte MAP = 5;
+    private static final byte LIST = 6;
+
+    private WorkbookSnapshot() {
+    }
+
+    /**
+     * Returns the workbook model from {@code snapshot} if it is up to date
+     * with {@code workbook}. Otherwise loads it with {@code loader} and
+     * writes a new snapshot. A snapshot which cannot be read or written is
+     * logged and ignored.
+     */
+    public static XlBean readOrLoad(File workbook, File snapshot, Supplier<XlBean> loader) {
+        if (snapshot.exists()) {
+            try {
+                XlBean xlbean = read(workbook, snapshot);
+                if (xlbean != null) {
+                    log.info("Loaded workbook from snapshot {}", snapshot);
+                    return xlbean;
+                }
+                log.info("Snapshot {} is out of date.", snapshot);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Ignoring unreadable snapshot {}: {}", snapshot, e.toString());
+            }
+        }
+        XlBean xlbean = loader.get();
+        try {
+            write(xlbean, workbook, snapshot);
+            log.info("Saved workbook snapshot {}", snapshot);
+        } catch (IOException | RuntimeException e) {
+            log.warn("Could not write snapshot {}: {}", snapshot, e.toString());
+        }
+        return xlbean;
+    }
+
+    private static XlBean read(File workbook, File snapshot) throws IOException {
+        try (FileChannel channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ)) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC) {
+                return null;
+            }
+            long size = buffer.getLong();
+            long lastModified = buffer.getLong();
+            byte[] snapshotChecksum = new byte[32];
+            buffer.get(snapshotChecksum);
+            if (size != workbook.length()
+                    || (lastModified != workbook.lastModified()
+                            && !Arrays.equals(snapshotChecksum, checksum(workbook)))) {
+                return null;
+            }
+            return (XlBean) new Reader(buffer).readValue();
+        }
+    }
+
+    private static void write(XlBean xlbean, File workbook, File snapshot) throws IOException {
+        File temp = new File(snapshot.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+            new BufferedOutputStream(Files.newOutputStream(temp.toPath()), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeLong(workbook.length());
+            out.writeLong(workbook.lastModified());
+            out.write(checksum(workbook));
+            new Writer(out).writeValue(xlbean);
+        }
+        Files.move(temp.toPath(), snapshot.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static byte[] checksum(File file) throws IOException {
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static class Writer {
+        private final DataOutputStream out;
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        Writer(DataOutputStream out) {
+            this.out = out;
+        }
+
+        @SuppressWarnings("unchecked")
+        void writeValue(Object value) throws IOException {
+            if (value == null) {
+                out.writeByte(NULL);
+            } else if (value instanceof String) {
+                writeString((String) value);
+            } else if (value instanceof Map) {
+                out.writeByte(value instanceof XlBean ? BEAN : MAP);
+                Map<String, Object> map = (Map<String, Object>) value;
+                out.writeInt(map.size());
+                for (Map.Entry<String, Object> entry : map.entrySet()) {
+                    writeString(entry.getKey());
+                    writeValue(entry.getValue());
+                }
+            } else if (value instanceof List) {
+                out.writeByte(value instanceof XlList ? XL_LIST : LIST);
+                List<Object> list = (List<Object>) value;
+                out.writeInt(list.size());
+                for (Object element : list) {
+                    writeValue(element);
+                }
+            } else {
+                throw new IllegalArgumentException("Unsupported value type " + value.getClass().getName());
+            }
+        }
+
+        private void writeString(String value) throws IOException {
+            Integer index = strings.get(value);
+            if (index != null) {
+                out.writeByte(STRING_REF);
+                out.writeInt(index);
+                return;
+            }
+            strings.put(value, strings.size());
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeByte(STRING);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static class Reader {
+        private final ByteBuffer buffer;
+        private final List<String> strings = new ArrayList<>();
+
+        Reader(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        Object readValue() {
+            byte tag = buffer.get();
+            switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                byte[] bytes = new byte[buffer.getInt()];
+                buffer.get(bytes);
+                String string = new String(bytes, StandardCharsets.UTF_8);
+                strings.add(string);
+                return string;
+            case STRING_REF:
+                return strings.get(buffer.getInt());
+            case BEAN:
+            case MAP:
+                int size = buffer.getInt();
+                Map<String, Object> map = tag == BEAN
+                        ? XlBeanFactory.getInstance().createBean()
+                        : new LinkedHashMap<>();
+                for (int i = 0; i < size; i++) {
+                    String key = (String) readValue();
+                    map.put(key, readValue());
+                }
+                return map;
+            case XL_LIST:
+            case LIST:
+                int length = buffer.getInt();
+                List list = tag == XL_LIST ? new XlList() : new ArrayList<>(length);
+                for (int i = 0; i < length; i++) {
+                    list.add(readValue());
+                }
+                return list;
+            default:
+                throw new IllegalStateException("Unknown tag " + tag);
+            }
+        }
+    }
+}
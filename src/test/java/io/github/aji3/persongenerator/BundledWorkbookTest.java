@@ -0,0 +1,92 @@
+package io.github.aji3.persongenerator;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.xlbean.XlBean;
+import org.xlbean.reader.XlBeanReader;
+import org.xlbean.util.XlBeanFactory;
+
+import io.github.aji3.persongenerator.GenerationPlan.GeneratorStep;
+import io.github.aji3.persongenerator.GenerationPlan.InstancePlan;
+import junit.framework.TestCase;
+
+/**
+ * Compiles and runs the bundled person_generator.xlsx.
+ */
+public class BundledWorkbookTest extends TestCase {
+
+    private XlBean xlbean;
+
+    @Override
+    protected void setUp() {
+        XlBeanFactory.setInstance(new FlexibleXlBeanFactory());
+        xlbean = new XlBeanReader().read(new File("person_generator.xlsx"));
+    }
+
+    public void testCompiles() {
+        GenerationPlan plan = GenerationPlan.compile(xlbean);
+        assertFalse(plan.getInstances(xlbean.value("targetType")).isEmpty());
+    }
+
+    public void testFamilyFieldsOnlyDependOnFieldsTheyRead() {
+        GenerationPlan plan = GenerationPlan.compile(xlbean);
+        InstancePlan me = plan.getInstances("Person").get(0);
+        GeneratorStep married = step(me, "family.married");
+        GeneratorStep hasChild = step(me, "family.hasChild");
+        GeneratorStep spouseLivingTogether = step(me, "family.spouseLivingTogether");
+
+        assertTrue(me.getDependencies().getDependencies(hasChild).contains(married));
+        assertFalse(me.getDependencies().getDependencies(hasChild).contains(spouseLivingTogether));
+        List<GeneratorStep> steps = me.getSteps();
+        assertTrue(steps.indexOf(married) < steps.indexOf(hasChild));
+        assertTrue(steps.indexOf(hasChild) < steps.indexOf(spouseLivingTogether));
+    }
+
+    public void testStepIdsAreUnique() {
+        GenerationPlan plan = GenerationPlan.compile(xlbean);
+        for (String type : plan.getTypes()) {
+            for (InstancePlan instance : plan.getInstances(type)) {
+                Set<String> ids = new HashSet<>();
+                for (GeneratorStep step : instance.getSteps()) {
+                    assertTrue("Duplicate step id " + step.getId(), ids.add(step.getId()));
+                }
+            }
+        }
+    }
+
+    public void testGenerates() {
+        GenerationPlan plan = GenerationPlan.compile(xlbean);
+        String targetType = xlbean.value("targetType");
+        try (ParallelPersonGenerator generator = new ParallelPersonGenerator(
+            plan,
+            2,
+            0,
+            new RandomSource(1),
+            new GenerationMetrics())) {
+            List<XlBean> records = generator.generate(targetType, 20);
+            int mainRecords = 0;
+            for (XlBean record : records) {
+                assertNotNull(record.get("id"));
+                assertNotNull(record.get("lastName"));
+                assertNotNull(record.get("firstName"));
+                if ("me".equals(record.get("_instanceName"))) {
+                    mainRecords++;
+                }
+            }
+            assertEquals(20, mainRecords);
+        }
+    }
+
+    private static GeneratorStep step(InstancePlan instance, String field) {
+        for (GeneratorStep step : instance.getSteps()) {
+            if (field.equals(step.getField())) {
+                return step;
+            }
+        }
+        fail("No step for " + field);
+        return null;
+    }
+}
@@ -0,0 +1,82 @@
+package io.github.aji3.persongenerator;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.xlbean.XlBean;
+import org.xlbean.util.XlBeanFactory;
+
+import junit.framework.TestCase;
+
+public class ColumnarRecordSinkTest extends TestCase {
+
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception {
+        XlBeanFactory.setInstance(new FlexibleXlBeanFactory());
+        file = File.createTempFile("columnar", ".pgc");
+    }
+
+    @Override
+    protected void tearDown() {
+        file.delete();
+    }
+
+    public void testRoundTrip() throws Exception {
+        List<XlBean> records = new ArrayList<>();
+        for (int i = 0; i < 12; i++) {
+            XlBean record = XlBeanFactory.getInstance().createBean();
+            record.put("id", "p" + i);
+            // the second row group has no age at all
+            record.put("age", i >= 6 ? null : i);
+            record.put("score", i < 6 ? (Object) i : (Object) (i / 2.0));
+            record.put("active", i % 3 == 0);
+            record.put("note", i % 2 == 0 ? "a" : "b");
+            records.add(record);
+        }
+        // widens age from INT64 to STRING, and score in the second row group
+        // from INT64 to DOUBLE
+        records.get(5).put("age", "unknown");
+
+        RecordSchemaProvider schemaProvider = new RecordSchemaProvider(
+            Arrays.asList("id", "age", "score", "active", "note", "nothing"),
+            2,
+            2);
+        try (ColumnarRecordSink sink = new ColumnarRecordSink(
+            file.getPath(),
+            schemaProvider,
+            6,
+            new GenerationMetrics())) {
+            for (XlBean record : records) {
+                sink.write(record);
+            }
+        }
+
+        try (ColumnarFileReader reader = new ColumnarFileReader(file)) {
+            assertEquals(Arrays.asList("id", "age", "score", "active", "note", "nothing"), reader.getColumnNames());
+            assertEquals(ColumnarRecordSink.TYPE_STRING, reader.getColumnType(0));
+            assertEquals(ColumnarRecordSink.TYPE_STRING, reader.getColumnType(1));
+            assertEquals(ColumnarRecordSink.TYPE_DOUBLE, reader.getColumnType(2));
+            assertEquals(ColumnarRecordSink.TYPE_BOOLEAN, reader.getColumnType(3));
+            assertEquals(ColumnarRecordSink.TYPE_STRING, reader.getColumnType(4));
+            assertEquals(ColumnarRecordSink.TYPE_STRING, reader.getColumnType(5));
+            assertEquals(12, reader.getRowCount());
+
+            List<Object[]> rows = new ArrayList<>();
+            reader.forEachRow(rows::add);
+            assertEquals(12, rows.size());
+            for (int i = 0; i < 12; i++) {
+                Object[] row = rows.get(i);
+                assertEquals("p" + i, row[0]);
+                assertEquals(i == 5 ? "unknown" : i > 5 ? null : String.valueOf(i), row[1]);
+                assertEquals(i < 6 ? (double) i : i / 2.0, row[2]);
+                assertEquals(i % 3 == 0, row[3]);
+                assertEquals(i % 2 == 0 ? "a" : "b", row[4]);
+                assertNull(row[5]);
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package io.github.aji3.persongenerator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.xlbean.XlBean;
+import org.xlbean.XlList;
+import org.xlbean.util.XlBeanFactory;
+
+import junit.framework.TestCase;
+
+public class ExtendedBeanDefinitionLoaderTest extends TestCase {
+
+    @Override
+    protected void setUp() {
+        XlBeanFactory.setInstance(new FlexibleXlBeanFactory());
+    }
+
+    public void testNestedColumnsFollowTheirLeafFields() {
+        XlList paymentMethods = new XlList();
+        paymentMethods.add(bean("type", "credit", "creditCardNumber", "1"));
+        paymentMethods.add(bean("type", "bank", "creditCardNumber", "2"));
+        XlList children = new XlList();
+        children.add(bean("id", "1"));
+        children.add(bean("id", "2"));
+        XlBean family = bean("married", "true");
+        family.put("children", children);
+        XlBean person = bean("id", "1", "note", "n");
+        person.put("address", bean("prefecture", "p", "town", "t"));
+        person.put("paymentMethods", paymentMethods);
+        person.put("family", family);
+
+        List<String> order = Arrays.asList(
+            "id",
+            "paymentMethods[0].type",
+            "paymentMethods[0].creditCardNumber",
+            "address.prefecture",
+            "family.married",
+            "family.children[0].id");
+        assertEquals(
+            Arrays.asList(
+                "id",
+                "paymentMethods[0].type",
+                "paymentMethods[0].creditCardNumber",
+                "paymentMethods[1].type",
+                "paymentMethods[1].creditCardNumber",
+                "address.prefecture",
+                "address.town",
+                "family.married",
+                "family.children[0].id",
+                "family.children[1].id",
+                "note"),
+            new ExtendedBeanDefinitionLoader(2, order, "persons").loadColumnNames(source(person)));
+    }
+
+    public void testSchemaFixesColumns() {
+        XlList phones = new XlList();
+        phones.add(bean("number", "1"));
+        XlBean sampled = bean("id", "1", "name", "a");
+        sampled.put("phones", phones);
+        RecordSchema schema = RecordSchema.derive(Arrays.asList("name", "id"), Arrays.asList(sampled), 2);
+
+        XlBean later = bean("id", "2", "extra", "x");
+        assertEquals(
+            schema.getColumnNames(),
+            new ExtendedBeanDefinitionLoader(schema, "persons").loadColumnNames(source(sampled, later)));
+        assertEquals(
+            Arrays.asList("name", "id", "phones[0].number", "phones[1].number"),
+            schema.getColumnNames());
+    }
+
+    private static XlBean source(XlBean... records) {
+        XlBean source = new XlBean();
+        source.set("persons", new ArrayList<>(Arrays.asList(records)));
+        return source;
+    }
+
+    private static XlBean bean(String... keyValues) {
+        XlBean bean = XlBeanFactory.getInstance().createBean();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            bean.put(keyValues[i], keyValues[i + 1]);
+        }
+        return bean;
+    }
+}
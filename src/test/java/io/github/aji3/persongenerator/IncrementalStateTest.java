@@ -0,0 +1,84 @@
+package io.github.aji3.persongenerator;
+
+import java.io.File;
+import java.util.List;
+
+import org.xlbean.XlBean;
+import org.xlbean.reader.XlBeanReader;
+import org.xlbean.util.XlBeanFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import junit.framework.TestCase;
+
+/**
+ * Incremental runs of the bundled workbook must match a full run of the
+ * edited workbook.
+ */
+public class IncrementalStateTest extends TestCase {
+
+    private static final long SEED = 42;
+    private static final int ROUNDS = 30;
+
+    private File stateFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        XlBeanFactory.setInstance(new FlexibleXlBeanFactory());
+        stateFile = File.createTempFile("incremental", ".jsonl");
+    }
+
+    @Override
+    protected void tearDown() {
+        stateFile.delete();
+    }
+
+    public void testEditedVariableIsRegeneratedInLaterFields() {
+        XlBean original = read();
+        String targetType = original.value("targetType");
+        IncrementalState first = new IncrementalState(GenerationPlan.compile(original), targetType, SEED, null);
+        generate(original, first);
+        first.write(stateFile);
+
+        XlBean edited = read();
+        editLogic(edited, "lastName = ", "lastName = randomFrom(lastNames.reverse())");
+        editLogic(edited, "bankBranch = ", "bankBranch = randomFrom(bankBranches.reverse())");
+        GenerationPlan plan = GenerationPlan.compile(edited);
+        IncrementalState second = new IncrementalState(plan, targetType, SEED, IncrementalState.read(stateFile));
+        assertEquals(2, second.getChangedSteps().size());
+
+        ObjectMapper mapper = new ObjectMapper();
+        assertEquals(
+            mapper.valueToTree(generate(edited, null)),
+            mapper.valueToTree(generate(edited, second)));
+        assertTrue(second.getReusedCount() > 0);
+    }
+
+    private static XlBean read() {
+        return new XlBeanReader().read(new File("person_generator.xlsx"));
+    }
+
+    private static void editLogic(XlBean workbook, String prefix, String logic) {
+        for (XlBean generator : workbook.list("generators")) {
+            XlBean logicBean = generator.bean("logic");
+            String me = logicBean == null ? null : logicBean.value("me");
+            if (me != null && me.startsWith(prefix)) {
+                logicBean.put("me", logic);
+                return;
+            }
+        }
+        fail("No logic starting with " + prefix);
+    }
+
+    private static List<XlBean> generate(XlBean workbook, IncrementalState state) {
+        try (ParallelPersonGenerator generator = new ParallelPersonGenerator(
+            GenerationPlan.compile(workbook),
+            2,
+            0,
+            new RandomSource(SEED),
+            new GenerationMetrics(),
+            state)) {
+            return generator.generate(workbook.value("targetType"), ROUNDS);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package io.github.aji3.persongenerator;
+
+import java.util.SplittableRandom;
+
+import org.xlbean.XlBean;
+import org.xlbean.XlList;
+import org.xlbean.util.XlBeanFactory;
+
+import junit.framework.TestCase;
+
+public class PersonGeneratorTest extends TestCase {
+
+    @Override
+    protected void setUp() {
+        XlBeanFactory.setInstance(new FlexibleXlBeanFactory());
+    }
+
+    public void testStepsWithoutTargetFieldDrawIndependentValues() {
+        XlList generators = new XlList();
+        generators.add(generator(null, "x = randomIntBetween(0, 1000000)"));
+        generators.add(generator(null, "y = randomIntBetween(0, 1000000)"));
+        generators.add(generator("x", "x"));
+        generators.add(generator("y", "y"));
+        PersonGenerator generator = new PersonGenerator(
+            GenerationPlan.compile(workbook(generators)),
+            0,
+            new RandomSource(1),
+            new GenerationMetrics());
+
+        int same = 0;
+        for (int round = 0; round < 20; round++) {
+            XlBean person = generator.generate("Person", round).get(0);
+            if (person.get("x").equals(person.get("y"))) {
+                same++;
+            }
+        }
+        assertTrue("x and y were equal in " + same + " rounds", same < 2);
+    }
+
+    public void testBatchStepsWithoutTargetFieldDrawIndependentBatches() {
+        XlList generators = new XlList();
+        XlBean first = generator(null, "_this.a = randomDigits(8, batchSize)");
+        first.put("batch", "10");
+        XlBean second = generator(null, "_this.b = randomDigits(8, batchSize)");
+        second.put("batch", "10");
+        generators.add(first);
+        generators.add(second);
+        PersonGenerator generator = new PersonGenerator(
+            GenerationPlan.compile(workbook(generators)),
+            0,
+            new RandomSource(1),
+            new GenerationMetrics());
+
+        XlBean person = generator.generate("Person", 0).get(0);
+        assertNotNull(person.get("a"));
+        assertFalse(person.get("a").equals(person.get("b")));
+    }
+
+    public void testBatchSizeIsOnlyVisibleToBatchLogic() {
+        XlList generators = new XlList();
+        XlBean batch = generator("a", "randomDigits(8, batchSize)");
+        batch.put("batch", "10");
+        generators.add(batch);
+        generators.add(generator("size", "getBatchSize()"));
+        PersonGenerator generator = new PersonGenerator(
+            GenerationPlan.compile(workbook(generators)),
+            0,
+            new RandomSource(1),
+            new GenerationMetrics());
+
+        for (int round = 0; round < 20; round++) {
+            assertEquals("round " + round, 1, generator.generate("Person", round).get(0).get("size"));
+        }
+    }
+
+    public void testNestedGeneratorSharesCacheSizeAndMetrics() {
+        XlList generators = new XlList();
+        generators.add(generator("x", "randomIntBetween(0, 10)"));
+        GenerationMetrics metrics = new GenerationMetrics();
+        GenerationBinding binding = new GenerationBinding(GenerationPlan.compile(workbook(generators)), 3, metrics);
+
+        PersonGenerator nested = binding.getNestedGenerator();
+        nested.generate("Person", new SplittableRandom(1));
+        assertEquals(3, nested.getScriptCache().getMaxSize());
+        assertTrue(metrics.toJson().contains("Person.me"));
+        assertEquals(0, metrics.getRecordCount());
+    }
+
+    static XlBean workbook(XlList generators) {
+        XlBean instance = bean();
+        instance.put("type", "Person");
+        instance.put("name", "me");
+        instance.put("condition", "true");
+        XlList instanceTypes = new XlList();
+        instanceTypes.add(instance);
+
+        XlBean workbook = bean();
+        workbook.put("targetType", "Person");
+        workbook.put("instanceTypes", instanceTypes);
+        workbook.put("generators", generators);
+        return workbook;
+    }
+
+    static XlBean generator(String field, String logic) {
+        XlBean target = bean();
+        target.put("type", "Person");
+        if (field != null) {
+            target.put("field", field);
+        }
+        XlBean logicBean = bean();
+        logicBean.put("me", logic);
+        XlBean generator = bean();
+        generator.put("target", target);
+        generator.put("logic", logicBean);
+        return generator;
+    }
+
+    private static XlBean bean() {
+        return XlBeanFactory.getInstance().createBean();
+    }
+}
@@ -0,0 +1,71 @@
+package io.github.aji3.persongenerator;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.xlbean.XlBean;
+import org.xlbean.util.XlBeanFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import junit.framework.TestCase;
+
+public class RecordPipelineTest extends TestCase {
+
+    private File directory;
+
+    @Override
+    protected void setUp() throws Exception {
+        XlBeanFactory.setInstance(new FlexibleXlBeanFactory());
+        directory = Files.createTempDirectory("pipeline").toFile();
+    }
+
+    @Override
+    protected void tearDown() {
+        for (File file : directory.listFiles()) {
+            file.delete();
+        }
+        directory.delete();
+    }
+
+    public void testCloseWritesAllRecords() throws Exception {
+        File json = new File(directory, "out.json");
+        try (RecordPipeline pipeline = new RecordPipeline(sinks(json), 2)) {
+            pipeline.put(records(5));
+            pipeline.put(records(5));
+        }
+        assertEquals(10, new ObjectMapper().readTree(json).size());
+    }
+
+    public void testAbortDeletesPartialOutputs() throws Exception {
+        File json = new File(directory, "out.json");
+        try (RecordPipeline pipeline = new RecordPipeline(sinks(json), 2)) {
+            pipeline.put(records(5));
+            pipeline.abort();
+        }
+        assertEquals(0, directory.listFiles().length);
+    }
+
+    private List<RecordSink> sinks(File json) throws Exception {
+        return Arrays.asList(
+            new JsonRecordSink(json.getPath()),
+            new ColumnarRecordSink(
+                new File(directory, "out.pgc").getPath(),
+                new RecordSchemaProvider(Arrays.asList("id"), 1, 2),
+                4,
+                new GenerationMetrics()));
+    }
+
+    private static List<XlBean> records(int count) {
+        List<XlBean> ret = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            XlBean record = XlBeanFactory.getInstance().createBean();
+            record.put("id", String.valueOf(i));
+            ret.add(record);
+        }
+        return ret;
+    }
+}